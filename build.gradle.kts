@@ -21,6 +21,9 @@ dependencies {
     // this mod is optional, but is included so you can preview your mod icon
     // in the in-game mod list via the /modlist command
     runtimeOnly(libs.bettermodlist)
+
+    testImplementation(libs.junit.jupiter)
+    testRuntimeOnly(libs.junit.platform.launcher)
 }
 
 java {
@@ -61,6 +64,27 @@ hytale {
 
 }
 
+tasks.test {
+    useJUnitPlatform {
+        excludeTags("benchmark")
+    }
+}
+
+// The measurements behind the performance changes, slow and only run on request.
+tasks.register<Test>("benchmark") {
+    group = "verification"
+    description = "Runs the benchmarks under src/test."
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("benchmark")
+    }
+    testLogging {
+        showStandardStreams = true
+    }
+    outputs.upToDateWhen { false }
+}
+
 tasks.withType<Jar> {
     manifest {
         attributes["Specification-Title"] = rootProject.name
@@ -30,12 +30,31 @@ type Vector3 = {
 };
 
 type PeerData = {
+    // Extrapolated from basePosition and velocity between server updates.
     position: Vector3 | null;
+    basePosition: Vector3 | null;
+    velocity: Vector3 | null;
+    receivedAt: number;
     rotation: Vector3 | null;
+    // The server only sends spatial updates for peers inside the interest range.
+    inRange: boolean;
     // This will be for future tracking
     filters: Record<string, unknown>;
 };
 
+type SnapshotPeer = {
+    id?: string;
+    position?: Vector3;
+    velocity?: Vector3;
+    rotation?: Vector3;
+};
+
+type SnapshotMessage = {
+    peers?: SnapshotPeer[];
+    entered?: string[];
+    exited?: string[];
+};
+
 type AudioFilter = {
     id: string;
     create: (context: AudioContext) => AudioNode;
@@ -58,15 +77,28 @@ type VoiceChatConfig = {
     fullVolumeRange: number;
     fallOffRange: number;
     additionalPeerConnectionRange: number;
+    deadReckoningMaxSeconds?: number;
 };
 
 type PanningModel = 'HRTF' | 'equalpower';
 
+// Must match VoiceChatBinaryProtocol on the server.
+const BINARY_TYPE_SNAPSHOT = 1;
+const BINARY_FLAG_POSITION = 1;
+const BINARY_FLAG_ROTATION = 1 << 1;
+const BINARY_FLAG_ENTERED = 1 << 2;
+const BINARY_FLAG_EXITED = 1 << 3;
+const BINARY_POSITION_SCALE = 256;
+const BINARY_VELOCITY_SCALE = 256;
+const EXTRAPOLATION_INTERVAL_MS = 50;
+const BINARY_ANGLE_SCALE = Math.PI / 32767;
+
 const normalizeError = (error: unknown) =>
     error instanceof Error ? error : new Error('Voice chat error.');
 
 export class VoiceChatController {
     private callbacks: VoiceChatCallbacks;
+    private extrapolationTimer: number | null = null;
     private state = {
         ws: null as WebSocket | null,
         id: null as string | null,
@@ -74,6 +106,9 @@ export class VoiceChatController {
         audioContext: null as AudioContext | null,
         peers: new Map<string, PeerConnectionEntry>(),
         peerData: new Map<string, PeerData>(),
+        peerIdsByIndex: new Map<number, string>(),
+        // Kept for peers without a connection so the label is right once one opens.
+        peerStateLabels: new Map<string, string>(),
         debugAudio: null as { peerId: string; audio: HTMLAudioElement; pipeline: AudioPipeline } | null,
         debugMic: null as { peerId: string; pipeline: AudioPipeline } | null,
         muted: false,
@@ -173,6 +208,7 @@ export class VoiceChatController {
     };
 
     destroy = () => {
+        this.stopExtrapolation();
         this.state.ws?.close();
         if (this.state.localStream) {
             this.state.localStream.getTracks().forEach((track) => track.stop());
@@ -254,6 +290,7 @@ export class VoiceChatController {
     };
 
     private updatePeerState = (peerId: string, stateLabel: string) => {
+        this.state.peerStateLabels.set(peerId, stateLabel);
         this.callbacks.onPeerListUpdate((prev) =>
             prev.map((peer) => (peer.id === peerId ? { ...peer, state: stateLabel } : peer)),
         );
@@ -264,7 +301,7 @@ export class VoiceChatController {
             if (prev.some((peer) => peer.id === peerId)) {
                 return prev;
             }
-            return [...prev, { id: peerId, state: 'Idle' }];
+            return [...prev, { id: peerId, state: this.state.peerStateLabels.get(peerId) ?? 'Idle' }];
         });
     };
 
@@ -327,7 +364,9 @@ export class VoiceChatController {
         }
         const pc = this.createPeerConnection(peerId);
         this.state.peers.set(peerId, { pc, pipeline: null });
-        this.getPeerData(peerId);
+        if (!this.state.peerData.has(peerId)) {
+            this.getPeerData(peerId).inRange = false;
+        }
         this.addPeerListItem(peerId);
         return this.state.peers.get(peerId)!;
     };
@@ -343,53 +382,102 @@ export class VoiceChatController {
         peers?: string[];
         userName?: string;
         config?: VoiceChatConfig;
+        index?: number;
+        peerIndices?: Record<string, number>;
+        states?: { type?: string; id?: string; muted?: boolean; active?: boolean }[];
     }) => {
         this.state.id = message.id ?? null;
+        if (this.state.id && typeof message.index === 'number') {
+            this.state.peerIdsByIndex.set(message.index, this.state.id);
+        }
+        Object.entries(message.peerIndices ?? {}).forEach(([peerId, index]) => {
+            this.state.peerIdsByIndex.set(index, peerId);
+        });
         this.callbacks.onPeerId(this.state.id ?? '');
         this.callbacks.onStatus('Joined. Waiting for peers...');
         this.callbacks.onMuteDisabled(false);
         this.callbacks.onUserName(message.userName ?? '');
         this.state.config = message.config ?? null;
         this.updateAllPeerFilters();
+        this.startExtrapolation();
+        // Mute and push to talk changes made before we joined. Each peer's states come in the
+        // order they changed, which is all that matters as they only affect that peer.
+        message.states?.forEach((state) => this.handlePeerStateMessage(state));
+    };
 
-        const peers = Array.isArray(message.peers) ? message.peers : [];
-        peers.forEach((peerId) => {
-            if (peerId !== this.state.id) {
-                this.addPeer(peerId);
-            }
-        });
+    private handlePeerStateMessage = (message: {
+        type?: string;
+        id?: string;
+        muted?: boolean;
+        active?: boolean;
+    }) => {
+        if (!message.id) {
+            return;
+        }
+        if (message.type === 'mute') {
+            this.updatePeerState(message.id, message.muted ? 'Muted' : 'Talking');
+        } else if (message.type === 'ptt') {
+            this.updatePeerState(message.id, message.active ? 'PTT' : 'Idle');
+        }
+    };
 
-        if (peers.length > 0) {
-            this.callbacks.onStatus('Connected. Negotiating audio...');
+    // Connections are opened when the server sends a connect directive, not on join.
+    private handlePeerJoin = (message: { id?: string; index?: number }) => {
+        const peerId = message.id;
+        if (!peerId || peerId === this.state.id) {
+            return;
+        }
+        if (typeof message.index === 'number') {
+            this.state.peerIdsByIndex.set(message.index, peerId);
         }
     };
 
-    private handlePeerJoin = async (message: { id?: string }) => {
+    private handleConnect = async (message: { id?: string; initiator?: boolean }) => {
         const peerId = message.id;
         if (!peerId || peerId === this.state.id) {
             return;
         }
+        this.callbacks.onStatus('Connected. Negotiating audio...');
         const entry = this.addPeer(peerId);
-        if (entry) {
+        // The server picks one side to make the offer, the other waits for it.
+        if (message.initiator) {
             await this.makeOffer(peerId, entry.pc);
         }
     };
 
-    private handlePeerLeave = (message: { id?: string }) => {
-        const peerId = message.id;
-        if (!peerId) {
-            return;
+    private handleDisconnect = (message: { id?: string }) => {
+        if (message.id) {
+            this.closePeer(message.id);
         }
+    };
+
+    private closePeer = (peerId: string) => {
         const entry = this.state.peers.get(peerId);
         if (!entry) {
-            return;
+            return false;
         }
         entry.pc.close();
         this.teardownPipeline(entry.pipeline);
         this.state.peers.delete(peerId);
-        this.state.peerData.delete(peerId);
         this.removePeerListItem(peerId);
-        this.callbacks.onStatus('Peer left.');
+        return true;
+    };
+
+    private handlePeerLeave = (message: { id?: string }) => {
+        const peerId = message.id;
+        if (!peerId) {
+            return;
+        }
+        this.state.peerIdsByIndex.forEach((id, index) => {
+            if (id === peerId) {
+                this.state.peerIdsByIndex.delete(index);
+            }
+        });
+        this.state.peerData.delete(peerId);
+        this.state.peerStateLabels.delete(peerId);
+        if (this.closePeer(peerId)) {
+            this.callbacks.onStatus('Peer left.');
+        }
     };
 
     private handleOffer = async (message: { from?: string; sdp?: RTCSessionDescriptionInit }) => {
@@ -432,48 +520,165 @@ export class VoiceChatController {
         }
     };
 
-    private handlePosition = (message: { id?: string; position?: Vector3 }) => {
-        if (!message.position) {
+    private handleSnapshot = (message: SnapshotMessage) => {
+        message.exited?.forEach((peerId) => {
+            this.getPeerData(peerId).inRange = false;
+        });
+        message.entered?.forEach((peerId) => {
+            this.getPeerData(peerId).inRange = true;
+        });
+
+        let selfMoved = false;
+        const changedPeers = new Set<string>([
+            ...(message.exited ?? []),
+            ...(message.entered ?? []),
+        ]);
+        (message.peers ?? []).forEach((update) => {
+            if (!update.id) {
+                return;
+            }
+            const data = this.getPeerData(update.id);
+            if (update.position) {
+                data.position = update.position;
+                data.basePosition = update.position;
+                data.velocity = update.velocity ?? null;
+                data.receivedAt = performance.now();
+            }
+            if (update.rotation) {
+                data.rotation = update.rotation;
+            }
+            if (this.state.id && update.id === this.state.id) {
+                this.state.position = data.position;
+                this.state.rotation = data.rotation;
+                selfMoved = true;
+                return;
+            }
+            changedPeers.add(update.id);
+        });
+
+        if (selfMoved) {
+            this.updateListener();
+            this.updateAllPeerFilters();
             return;
         }
-        if (message.id) {
-            const data = this.getPeerData(message.id);
-            data.position = message.position;
-            this.updatePeerFilters(message.id);
+        changedPeers.forEach((peerId) => this.updatePeerFilters(peerId));
+    };
+
+    private decodeBinarySnapshot = (buffer: ArrayBuffer): SnapshotMessage | null => {
+        const view = new DataView(buffer);
+        if (view.byteLength < 3 || view.getUint8(0) !== BINARY_TYPE_SNAPSHOT) {
+            return null;
         }
-        if (message.id && this.state.id && message.id !== this.state.id) {
-            console.debug('[voicechat] peer position update', message.id, message.position);
-            return;
+        const count = view.getUint16(1);
+        const message: Required<SnapshotMessage> = { peers: [], entered: [], exited: [] };
+        let offset = 3;
+        for (let i = 0; i < count; i++) {
+            const id = this.state.peerIdsByIndex.get(view.getUint16(offset));
+            const flags = view.getUint8(offset + 2);
+            offset += 3;
+            const update: SnapshotPeer = { id };
+            if (flags & BINARY_FLAG_POSITION) {
+                update.position = {
+                    x: view.getInt32(offset) / BINARY_POSITION_SCALE,
+                    y: view.getInt32(offset + 4) / BINARY_POSITION_SCALE,
+                    z: view.getInt32(offset + 8) / BINARY_POSITION_SCALE,
+                };
+                update.velocity = {
+                    x: view.getInt16(offset + 12) / BINARY_VELOCITY_SCALE,
+                    y: view.getInt16(offset + 14) / BINARY_VELOCITY_SCALE,
+                    z: view.getInt16(offset + 16) / BINARY_VELOCITY_SCALE,
+                };
+                offset += 18;
+            }
+            if (flags & BINARY_FLAG_ROTATION) {
+                update.rotation = {
+                    x: view.getInt16(offset + 2) * BINARY_ANGLE_SCALE,
+                    y: view.getInt16(offset) * BINARY_ANGLE_SCALE,
+                    z: 0,
+                };
+                offset += 4;
+            }
+            // Indexes we have not been told about yet are skipped, the layout is still consumed.
+            if (!id) {
+                continue;
+            }
+            if (flags & BINARY_FLAG_ENTERED) {
+                message.entered.push(id);
+            }
+            if (flags & BINARY_FLAG_EXITED) {
+                message.exited.push(id);
+            }
+            if (update.position || update.rotation) {
+                message.peers.push(update);
+            }
         }
-        this.state.position = message.position;
-        this.updateListener();
-        this.updateAllPeerFilters();
-        console.debug('[voicechat] position update', message.position);
+        return message;
     };
 
-    private handleRotation = (message: { id?: string; rotation?: Vector3 }) => {
-        if (!message.rotation) {
-            return;
+    private startExtrapolation = () => {
+        if (this.extrapolationTimer === null) {
+            this.extrapolationTimer = window.setInterval(
+                this.extrapolatePositions,
+                EXTRAPOLATION_INTERVAL_MS,
+            );
         }
-        if (message.id) {
-            const data = this.getPeerData(message.id);
-            data.rotation = message.rotation;
-            this.updatePeerFilters(message.id);
+    };
+
+    private stopExtrapolation = () => {
+        if (this.extrapolationTimer !== null) {
+            window.clearInterval(this.extrapolationTimer);
+            this.extrapolationTimer = null;
         }
-        if (message.id && this.state.id && message.id !== this.state.id) {
-            console.debug('[voicechat] peer rotation update', message.id, message.rotation);
-            return;
+    };
+
+    // The server only resends positions once this guess drifts too far, so moving peers
+    // keep panning smoothly between updates.
+    private extrapolatePositions = () => {
+        const now = performance.now();
+        const maxSeconds = this.state.config?.deadReckoningMaxSeconds ?? 1;
+        let selfMoved = false;
+        this.state.peerData.forEach((data, peerId) => {
+            const base = data.basePosition;
+            const velocity = data.velocity;
+            if (!base || !velocity || (velocity.x === 0 && velocity.y === 0 && velocity.z === 0)) {
+                return;
+            }
+            const sinceUpdate = (now - data.receivedAt) / 1000;
+            // Already resting at the extrapolation limit.
+            if (sinceUpdate > maxSeconds + EXTRAPOLATION_INTERVAL_MS / 1000) {
+                return;
+            }
+            const elapsed = Math.min(sinceUpdate, maxSeconds);
+            data.position = {
+                x: base.x + velocity.x * elapsed,
+                y: base.y + velocity.y * elapsed,
+                z: base.z + velocity.z * elapsed,
+            };
+            if (peerId === this.state.id) {
+                this.state.position = data.position;
+                selfMoved = true;
+                return;
+            }
+            this.updatePeerFilters(peerId);
+        });
+        if (selfMoved) {
+            this.updateListener();
+            this.updateAllPeerFilters();
         }
-        this.state.rotation = message.rotation;
-        this.updateListener();
-        this.updateAllPeerFilters();
-        console.debug('[voicechat] rotation update', message.rotation);
     };
 
     private getPeerData = (peerId: string) => {
         let data = this.state.peerData.get(peerId);
         if (!data) {
-            data = { position: null, rotation: null, filters: {} };
+            data = {
+                position: null,
+                basePosition: null,
+                velocity: null,
+                receivedAt: 0,
+                rotation: null,
+                inRange: true,
+                filters: {},
+            };
             this.state.peerData.set(peerId, data);
         }
         return data;
@@ -611,6 +816,9 @@ export class VoiceChatController {
         selfPosition: Vector3 | null,
         config: VoiceChatConfig | null,
     ) => {
+        if (peerData && !peerData.inRange) {
+            return 0;
+        }
         if (!peerData?.position || !selfPosition || peerId === this.state.id) {
             return 1;
         }
@@ -644,15 +852,25 @@ export class VoiceChatController {
                 ? address
                 : `${protocol}://${address}/voice/ws`);
         const ws = new WebSocket(socketUrl);
+        ws.binaryType = 'arraybuffer';
         this.state.ws = ws;
 
         ws.addEventListener('open', () => {
+            // Cleared here rather than on welcome, a peer-join can arrive just ahead of it.
+            this.state.peerIdsByIndex.clear();
             this.callbacks.onConnectionStatus('Online');
             this.callbacks.onStatus('Connected.');
-            this.sendMessage({ type: 'hello', token });
+            this.sendMessage({ type: 'hello', token, binary: true });
         });
 
         ws.addEventListener('message', async (event) => {
+            if (event.data instanceof ArrayBuffer) {
+                const snapshot = this.decodeBinarySnapshot(event.data);
+                if (snapshot) {
+                    this.handleSnapshot(snapshot);
+                }
+                return;
+            }
             let message: { type?: string } = {};
             try {
                 message = JSON.parse(event.data as string);
@@ -665,7 +883,13 @@ export class VoiceChatController {
                     this.handleWelcome(message as { id?: string; peers?: string[]; userName?: string });
                     break;
                 case 'peer-join':
-                    await this.handlePeerJoin(message as { id?: string });
+                    this.handlePeerJoin(message as { id?: string; index?: number });
+                    break;
+                case 'connect':
+                    await this.handleConnect(message as { id?: string; initiator?: boolean });
+                    break;
+                case 'disconnect':
+                    this.handleDisconnect(message as { id?: string });
                     break;
                 case 'peer-leave':
                     this.handlePeerLeave(message as { id?: string });
@@ -694,25 +918,12 @@ export class VoiceChatController {
                         },
                     );
                     break;
-                case 'mute': {
-                    const payload = message as { id?: string; muted?: boolean };
-                    if (payload.id) {
-                        this.updatePeerState(payload.id, payload.muted ? 'Muted' : 'Talking');
-                    }
-                    break;
-                }
-                case 'ptt': {
-                    const payload = message as { id?: string; active?: boolean };
-                    if (payload.id) {
-                        this.updatePeerState(payload.id, payload.active ? 'PTT' : 'Idle');
-                    }
-                    break;
-                }
-                case 'position':
-                    this.handlePosition(message as { id?: string; position?: Vector3 });
+                case 'mute':
+                case 'ptt':
+                    this.handlePeerStateMessage(message as { type?: string; id?: string });
                     break;
-                case 'rotation':
-                    this.handleRotation(message as { id?: string; rotation?: Vector3 });
+                case 'snapshot':
+                    this.handleSnapshot(message as SnapshotMessage);
                     break;
                 case 'error':
                     this.handleError(
@@ -724,6 +935,7 @@ export class VoiceChatController {
         });
 
         ws.addEventListener('close', () => {
+            this.stopExtrapolation();
             this.callbacks.onConnectionStatus('Offline');
             this.callbacks.onStatus('Disconnected.');
             this.callbacks.onJoinDisabled(false);
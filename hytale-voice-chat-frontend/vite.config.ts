@@ -1,5 +1,39 @@
-import { defineConfig } from 'vite';
+import { defineConfig, type Plugin } from 'vite';
 import react from '@vitejs/plugin-react';
+import { readdirSync, readFileSync, statSync, writeFileSync } from 'node:fs';
+import { join } from 'node:path';
+import { brotliCompressSync, constants } from 'node:zlib';
+
+const COMPRESSIBLE = /\.(html|js|css|json|map|svg)$/;
+
+// Writes a .br next to each text file so the server can serve brotli without compressing at
+// runtime. gzip is produced by the server itself when it loads the bundle.
+function brotliAssets(): Plugin {
+    return {
+        name: 'voice-brotli-assets',
+        apply: 'build',
+        writeBundle(options) {
+            const outDir = options.dir;
+            if (!outDir) {
+                return;
+            }
+            const walk = (dir: string) => {
+                for (const name of readdirSync(dir)) {
+                    const path = join(dir, name);
+                    if (statSync(path).isDirectory()) {
+                        walk(path);
+                    } else if (COMPRESSIBLE.test(name)) {
+                        const compressed = brotliCompressSync(readFileSync(path), {
+                            params: { [constants.BROTLI_PARAM_QUALITY]: constants.BROTLI_MAX_QUALITY },
+                        });
+                        writeFileSync(`${path}.br`, compressed);
+                    }
+                }
+            };
+            walk(outDir);
+        },
+    };
+}
 
 // https://vite.dev/config/
 export default defineConfig({
@@ -15,5 +49,6 @@ export default defineConfig({
                 plugins: [['babel-plugin-react-compiler']],
             },
         }),
+        brotliAssets(),
     ],
 });
@@ -13,7 +13,11 @@ import com.sekwah.voicechat.config.VoiceChatSessionsConfig;
 import com.sekwah.voicechat.server.VoiceChatService;
 import com.sekwah.voicechat.systems.VoiceDataBroadcastSystem;
 import com.sekwah.voicechat.systems.VoicePositionSystem;
+import com.sekwah.voicechat.systems.VoiceSessionTagSystem;
+import com.sekwah.voicechat.systems.VoiceSessionWorldSystem;
+import com.sekwah.voicechat.systems.VoiceUpdateScheduler;
 import com.sekwah.voicechat.systems.components.VoiceChatComponent;
+import com.sekwah.voicechat.systems.components.VoiceChatConnectedComponent;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.CompletableFuture;
@@ -26,6 +30,7 @@ public class VoiceChat extends JavaPlugin {
     public static final HytaleLogger LOGGER = HytaleLogger.forEnclosingClass();
     private VoiceChatService service;
     private ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType;
+    private ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType;
 
     public VoiceChat(JavaPluginInit init) {
         super(init);
@@ -49,9 +54,13 @@ public class VoiceChat extends JavaPlugin {
         });
 
         this.voiceChatComponentType = this.getEntityStoreRegistry().registerComponent(VoiceChatComponent.class, VoiceChatComponent::new);
+        this.connectedComponentType = this.getEntityStoreRegistry().registerComponent(VoiceChatConnectedComponent.class, VoiceChatConnectedComponent::new);
 
-        this.getEntityStoreRegistry().registerSystem(new VoicePositionSystem(this.voiceChatComponentType, this.service.getRoom()));
-        this.getEntityStoreRegistry().registerSystem(new VoiceDataBroadcastSystem(this.voiceChatComponentType, this.service.getRoom()));
+        VoiceUpdateScheduler updateScheduler = new VoiceUpdateScheduler();
+        this.getEntityStoreRegistry().registerSystem(new VoiceSessionWorldSystem(this.connectedComponentType, this.voiceChatComponentType, this.service.getRoom()));
+        this.getEntityStoreRegistry().registerSystem(new VoiceSessionTagSystem(this.connectedComponentType, this.voiceChatComponentType, this.service.getRoom()));
+        this.getEntityStoreRegistry().registerSystem(new VoicePositionSystem(this.voiceChatComponentType, this.connectedComponentType, this.service.getRoom(), updateScheduler));
+        this.getEntityStoreRegistry().registerSystem(new VoiceDataBroadcastSystem(this.voiceChatComponentType, this.service.getRoom(), updateScheduler));
     }
 
     @Override
@@ -34,6 +34,87 @@ public class VoiceChatConfig {
             .append(new KeyedCodec<Double>("AdditionalPeerConnectionRange", Codec.DOUBLE),
                     (config, value) -> config.AdditionalPeerConnectionRange = value,
                     (config) -> config.AdditionalPeerConnectionRange).add()
+            .append(new KeyedCodec<Double>("PositionDeadBand", Codec.DOUBLE),
+                    (config, value) -> config.PositionDeadBand = value,
+                    (config) -> config.PositionDeadBand).add()
+            .append(new KeyedCodec<Double>("PositionPrecision", Codec.DOUBLE),
+                    (config, value) -> config.PositionPrecision = value,
+                    (config) -> config.PositionPrecision).add()
+            .append(new KeyedCodec<Double>("YawDeadBandDegrees", Codec.DOUBLE),
+                    (config, value) -> config.YawDeadBandDegrees = value,
+                    (config) -> config.YawDeadBandDegrees).add()
+            .append(new KeyedCodec<Double>("PitchDeadBandDegrees", Codec.DOUBLE),
+                    (config, value) -> config.PitchDeadBandDegrees = value,
+                    (config) -> config.PitchDeadBandDegrees).add()
+            .append(new KeyedCodec<Double>("RotationPrecisionDegrees", Codec.DOUBLE),
+                    (config, value) -> config.RotationPrecisionDegrees = value,
+                    (config) -> config.RotationPrecisionDegrees).add()
+            .append(new KeyedCodec<Double>("DeadReckoningErrorThreshold", Codec.DOUBLE),
+                    (config, value) -> config.DeadReckoningErrorThreshold = value,
+                    (config) -> config.DeadReckoningErrorThreshold).add()
+            .append(new KeyedCodec<Double>("DeadReckoningMaxSeconds", Codec.DOUBLE),
+                    (config, value) -> config.DeadReckoningMaxSeconds = value,
+                    (config) -> config.DeadReckoningMaxSeconds).add()
+            .append(new KeyedCodec<Integer>("MidRangeUpdateDivisor", Codec.INTEGER),
+                    (config, value) -> config.MidRangeUpdateDivisor = value,
+                    (config) -> config.MidRangeUpdateDivisor).add()
+            .append(new KeyedCodec<Integer>("FarRangeUpdateDivisor", Codec.INTEGER),
+                    (config, value) -> config.FarRangeUpdateDivisor = value,
+                    (config) -> config.FarRangeUpdateDivisor).add()
+            .append(new KeyedCodec<Integer>("MaxPeerConnections", Codec.INTEGER),
+                    (config, value) -> config.MaxPeerConnections = value,
+                    (config) -> config.MaxPeerConnections).add()
+            .append(new KeyedCodec<Double>("PeerConnectionSwitchMargin", Codec.DOUBLE),
+                    (config, value) -> config.PeerConnectionSwitchMargin = value,
+                    (config) -> config.PeerConnectionSwitchMargin).add()
+            .append(new KeyedCodec<Double>("PeerRebalanceIntervalSeconds", Codec.DOUBLE),
+                    (config, value) -> config.PeerRebalanceIntervalSeconds = value,
+                    (config) -> config.PeerRebalanceIntervalSeconds).add()
+            .append(new KeyedCodec<Integer>("WriteBufferLowWaterMark", Codec.INTEGER),
+                    (config, value) -> config.WriteBufferLowWaterMark = value,
+                    (config) -> config.WriteBufferLowWaterMark).add()
+            .append(new KeyedCodec<Integer>("WriteBufferHighWaterMark", Codec.INTEGER),
+                    (config, value) -> config.WriteBufferHighWaterMark = value,
+                    (config) -> config.WriteBufferHighWaterMark).add()
+            .append(new KeyedCodec<Boolean>("WebSocketCompressionEnabled", Codec.BOOLEAN),
+                    (config, value) -> config.WebSocketCompressionEnabled = value,
+                    (config) -> config.WebSocketCompressionEnabled).add()
+            .append(new KeyedCodec<Integer>("WebSocketCompressionLevel", Codec.INTEGER),
+                    (config, value) -> config.WebSocketCompressionLevel = value,
+                    (config) -> config.WebSocketCompressionLevel).add()
+            .append(new KeyedCodec<Integer>("WebSocketCompressionMinBytes", Codec.INTEGER),
+                    (config, value) -> config.WebSocketCompressionMinBytes = value,
+                    (config) -> config.WebSocketCompressionMinBytes).add()
+            .append(new KeyedCodec<Boolean>("WebSocketCompressBinary", Codec.BOOLEAN),
+                    (config, value) -> config.WebSocketCompressBinary = value,
+                    (config) -> config.WebSocketCompressBinary).add()
+            .append(new KeyedCodec<Boolean>("WebSocketContextTakeover", Codec.BOOLEAN),
+                    (config, value) -> config.WebSocketContextTakeover = value,
+                    (config) -> config.WebSocketContextTakeover).add()
+            .append(new KeyedCodec<String>("AssetDirectory", Codec.STRING),
+                    (config, value) -> config.AssetDirectory = value,
+                    (config) -> config.AssetDirectory).add()
+            .append(new KeyedCodec<String>("NetworkTransport", Codec.STRING),
+                    (config, value) -> config.NetworkTransport = value,
+                    (config) -> config.NetworkTransport).add()
+            .append(new KeyedCodec<Integer>("AcceptorThreads", Codec.INTEGER),
+                    (config, value) -> config.AcceptorThreads = value,
+                    (config) -> config.AcceptorThreads).add()
+            .append(new KeyedCodec<Integer>("WorkerThreads", Codec.INTEGER),
+                    (config, value) -> config.WorkerThreads = value,
+                    (config) -> config.WorkerThreads).add()
+            .append(new KeyedCodec<String>("TlsCertificateFile", Codec.STRING),
+                    (config, value) -> config.TlsCertificateFile = value,
+                    (config) -> config.TlsCertificateFile).add()
+            .append(new KeyedCodec<String>("TlsPrivateKeyFile", Codec.STRING),
+                    (config, value) -> config.TlsPrivateKeyFile = value,
+                    (config) -> config.TlsPrivateKeyFile).add()
+            .append(new KeyedCodec<String>("TlsDirectory", Codec.STRING),
+                    (config, value) -> config.TlsDirectory = value,
+                    (config) -> config.TlsDirectory).add()
+            .append(new KeyedCodec<Integer>("TlsSessionTimeoutSeconds", Codec.INTEGER),
+                    (config, value) -> config.TlsSessionTimeoutSeconds = value,
+                    (config) -> config.TlsSessionTimeoutSeconds).add()
             .build();
 
     private int VoiceChatPort = 24454;
@@ -45,6 +126,55 @@ public class VoiceChatConfig {
     private double FullVolumeRange = 20.0;
     private double FallOffRange = 40.0;
     private double AdditionalPeerConnectionRange = 8.0;
+    // Movement smaller than these is treated as jitter and not sent.
+    private double PositionDeadBand = 0.1;
+    private double YawDeadBandDegrees = 2.0;
+    private double PitchDeadBandDegrees = 2.0;
+    // Values are snapped to these steps before comparing, 0 disables snapping.
+    private double PositionPrecision = 0.03125;
+    private double RotationPrecisionDegrees = 0.5;
+    // Clients extrapolate peers from their last velocity, a new position is only sent once
+    // that guess is off by more than the threshold. Setting either to 0 disables dead reckoning.
+    private double DeadReckoningErrorThreshold = 0.5;
+    private double DeadReckoningMaxSeconds = 1.0;
+    // Peers further into the fall off range get PeerUpdatesPerSecond divided by these.
+    // Mid range is the first half of the fall off range, far is everything past that.
+    private int MidRangeUpdateDivisor = 2;
+    private int FarRangeUpdateDivisor = 4;
+    // Each client connects to at most this many of its nearest peers in range, 0 for no limit.
+    // A connected peer is only swapped out for one that is this many blocks closer.
+    private int MaxPeerConnections = 16;
+    private double PeerConnectionSwitchMargin = 4.0;
+    // Pairings are recomputed for the whole world at most this often, 0 on every change.
+    private double PeerRebalanceIntervalSeconds = 0.5;
+    // Bytes queued per client before spatial updates are held back and conflated, and the
+    // level it has to drain to before they resume. Signaling is always sent.
+    private int WriteBufferLowWaterMark = 32 * 1024;
+    private int WriteBufferHighWaterMark = 64 * 1024;
+    // permessage-deflate, only frames of at least WebSocketCompressionMinBytes are deflated.
+    // Binary spatial frames are small and skipped unless WebSocketCompressBinary is set.
+    // Turning context takeover off saves the per connection window memory at some ratio cost.
+    private boolean WebSocketCompressionEnabled = true;
+    private int WebSocketCompressionLevel = 6;
+    private int WebSocketCompressionMinBytes = 256;
+    private boolean WebSocketCompressBinary = false;
+    private boolean WebSocketContextTakeover = true;
+    // When set the web client is extracted here on start and served from disk with sendfile,
+    // relative to the server directory. Empty keeps it in memory.
+    private String AssetDirectory = "";
+    // auto, io_uring, epoll or nio. auto uses the best one available on this machine.
+    private String NetworkTransport = "auto";
+    // More than one acceptor binds several sockets with SO_REUSEPORT, native transports only.
+    // Worker threads handle every connection, 0 uses Netty's default of twice the core count.
+    private int AcceptorThreads = 1;
+    private int WorkerThreads = 2;
+    // PEM certificate chain and key to serve, when either is empty a self signed certificate is
+    // generated into TlsDirectory and reused across restarts.
+    private String TlsCertificateFile = "";
+    private String TlsPrivateKeyFile = "";
+    private String TlsDirectory = "voicechat-tls";
+    // How long a client can resume its TLS session instead of doing a full handshake.
+    private int TlsSessionTimeoutSeconds = 86400;
 
     public int getVoiceChatPort() {
         return VoiceChatPort;
@@ -81,4 +211,121 @@ public class VoiceChatConfig {
     public double getAdditionalPeerConnectionRange() {
         return AdditionalPeerConnectionRange;
     }
+
+    public double getPositionDeadBand() {
+        return PositionDeadBand;
+    }
+
+    public double getPositionPrecision() {
+        return PositionPrecision;
+    }
+
+    public double getYawDeadBandDegrees() {
+        return YawDeadBandDegrees;
+    }
+
+    public double getPitchDeadBandDegrees() {
+        return PitchDeadBandDegrees;
+    }
+
+    public double getRotationPrecisionDegrees() {
+        return RotationPrecisionDegrees;
+    }
+
+    public double getDeadReckoningErrorThreshold() {
+        return DeadReckoningErrorThreshold;
+    }
+
+    public double getDeadReckoningMaxSeconds() {
+        return DeadReckoningMaxSeconds;
+    }
+
+    public boolean isDeadReckoningEnabled() {
+        return DeadReckoningErrorThreshold > 0 && DeadReckoningMaxSeconds > 0;
+    }
+
+    public int getMidRangeUpdateDivisor() {
+        return MidRangeUpdateDivisor;
+    }
+
+    public int getFarRangeUpdateDivisor() {
+        return FarRangeUpdateDivisor;
+    }
+
+    public int getMaxPeerConnections() {
+        return MaxPeerConnections;
+    }
+
+    public double getPeerConnectionSwitchMargin() {
+        return PeerConnectionSwitchMargin;
+    }
+
+    public double getPeerRebalanceIntervalSeconds() {
+        return PeerRebalanceIntervalSeconds;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return WriteBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return WriteBufferHighWaterMark;
+    }
+
+    public boolean isWebSocketCompressionEnabled() {
+        return WebSocketCompressionEnabled;
+    }
+
+    public int getWebSocketCompressionLevel() {
+        return WebSocketCompressionLevel;
+    }
+
+    public int getWebSocketCompressionMinBytes() {
+        return WebSocketCompressionMinBytes;
+    }
+
+    public boolean isWebSocketCompressBinary() {
+        return WebSocketCompressBinary;
+    }
+
+    public boolean isWebSocketContextTakeover() {
+        return WebSocketContextTakeover;
+    }
+
+    public String getAssetDirectory() {
+        return AssetDirectory;
+    }
+
+    public String getNetworkTransport() {
+        return NetworkTransport;
+    }
+
+    public int getAcceptorThreads() {
+        return AcceptorThreads;
+    }
+
+    public int getWorkerThreads() {
+        return WorkerThreads;
+    }
+
+    public String getTlsCertificateFile() {
+        return TlsCertificateFile;
+    }
+
+    public String getTlsPrivateKeyFile() {
+        return TlsPrivateKeyFile;
+    }
+
+    public String getTlsDirectory() {
+        return TlsDirectory;
+    }
+
+    public int getTlsSessionTimeoutSeconds() {
+        return TlsSessionTimeoutSeconds;
+    }
+
+    // Audible range plus a margin so peers are known about slightly before they can be heard.
+    public double getInterestRange() {
+        return FullVolumeRange + FallOffRange + AdditionalPeerConnectionRange;
+    }
 }
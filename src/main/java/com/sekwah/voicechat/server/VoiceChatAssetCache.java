@@ -0,0 +1,390 @@
+package com.sekwah.voicechat.server;
+
+import com.sekwah.voicechat.VoiceChat;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+// The web client bundled under voice/, read from the jar once and kept in memory along with
+// gzip and brotli copies so requests never touch the class loader or compress anything.
+public class VoiceChatAssetCache {
+
+    private static final String ROOT = "voice";
+    private static final String BROTLI_SUFFIX = ".br";
+    // Vite puts everything it content hashes in here, so those names never change meaning.
+    private static final String HASHED_PREFIX = ROOT + "/assets/";
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+            "text/html; charset=UTF-8",
+            "application/javascript",
+            "text/css",
+            "application/json",
+            "image/svg+xml"
+    );
+    private static final Map<String, String> CONTENT_TYPES = createContentTypes();
+
+    public enum Encoding {
+        IDENTITY(null),
+        GZIP("gzip"),
+        BROTLI("br");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String token() {
+            return token;
+        }
+    }
+
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+    private final ClassLoader classLoader;
+    // False when the bundle could not be listed up front, assets are then cached on first use.
+    private final boolean complete;
+
+    private VoiceChatAssetCache(ClassLoader classLoader, boolean complete) {
+        this.classLoader = classLoader;
+        this.complete = complete;
+    }
+
+    public static VoiceChatAssetCache load() {
+        ClassLoader classLoader = VoiceChatAssetCache.class.getClassLoader();
+        Map<String, byte[]> files = listBundle();
+        VoiceChatAssetCache cache = new VoiceChatAssetCache(classLoader, files != null);
+        if (files == null) {
+            VoiceChat.LOGGER.atWarning().log("Could not list the voice chat web client, assets will be cached on first request.");
+            return cache;
+        }
+        long identityBytes = 0;
+        long compressedBytes = 0;
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            String path = entry.getKey();
+            if (path.endsWith(BROTLI_SUFFIX) && files.containsKey(path.substring(0, path.length() - BROTLI_SUFFIX.length()))) {
+                continue;
+            }
+            Asset asset = cache.build(path, entry.getValue(), files.get(path + BROTLI_SUFFIX));
+            cache.assets.put(path, asset);
+            identityBytes += asset.identity().length();
+            compressedBytes += asset.smallestSize();
+        }
+        VoiceChat.LOGGER.atInfo().log("Cached %s voice chat web client files, %s bytes (%s compressed).",
+                cache.assets.size(), identityBytes, compressedBytes);
+        return cache;
+    }
+
+    // Null when the resource is not part of the bundle.
+    public Asset get(String resourcePath) {
+        Asset asset = assets.get(resourcePath);
+        if (asset != null || complete) {
+            return asset;
+        }
+        byte[] bytes = readResource(resourcePath);
+        if (bytes == null) {
+            return null;
+        }
+        return assets.computeIfAbsent(resourcePath, path -> build(path, bytes, readResource(path + BROTLI_SUFFIX)));
+    }
+
+    private Asset build(String path, byte[] bytes, byte[] prebuiltBrotli) {
+        String contentType = resolveContentType(path);
+        byte[] gzip = null;
+        byte[] brotli = null;
+        if (COMPRESSIBLE_TYPES.contains(contentType)) {
+            gzip = smaller(gzip(bytes), bytes.length);
+            brotli = smaller(prebuiltBrotli != null ? prebuiltBrotli : brotli(bytes), bytes.length);
+        }
+        String hash = hash(bytes);
+        return new Asset(
+                contentType,
+                path.startsWith(HASHED_PREFIX),
+                Variant.inMemory(bytes, "\"" + hash + "\""),
+                gzip != null ? Variant.inMemory(gzip, "\"" + hash + "-gz\"") : null,
+                brotli != null ? Variant.inMemory(brotli, "\"" + hash + "-br\"") : null
+        );
+    }
+
+    // Writes every cached file and its compressed copies under the directory and serves them
+    // from there from then on, so responses can go out with sendfile instead of from the heap.
+    public void extractTo(Path directory) {
+        Path root = directory.toAbsolutePath().normalize();
+        int extracted = 0;
+        try {
+            for (Map.Entry<String, Asset> entry : assets.entrySet()) {
+                Path target = root.resolve(entry.getKey().substring(ROOT.length() + 1)).normalize();
+                if (!target.startsWith(root)) {
+                    continue;
+                }
+                Asset asset = entry.getValue();
+                // Each asset only switches over once all of its files are written.
+                entry.setValue(new Asset(
+                        asset.contentType(),
+                        asset.immutable(),
+                        extract(asset.identity(), target),
+                        extract(asset.gzip(), target.resolveSibling(target.getFileName() + ".gz")),
+                        extract(asset.brotli(), target.resolveSibling(target.getFileName() + BROTLI_SUFFIX))
+                ));
+                extracted++;
+            }
+            VoiceChat.LOGGER.atInfo().log("Extracted %s voice chat web client files to %s.", extracted, root);
+        } catch (IOException e) {
+            VoiceChat.LOGGER.atWarning().withCause(e).log(
+                "Failed to extract the voice chat web client to %s, serving the rest from memory.", root);
+        }
+    }
+
+    private static Variant extract(Variant variant, Path target) throws IOException {
+        if (variant == null || variant.file() != null) {
+            return variant;
+        }
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, ByteBufUtil.getBytes(variant.content()));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        return new Variant(null, target, variant.length(), variant.etag());
+    }
+
+    // Path to file contents for everything under voice/, or null if the bundle is not on disk or
+    // in a jar that can be opened.
+    private static Map<String, byte[]> listBundle() {
+        try {
+            URI location = VoiceChatAssetCache.class.getProtectionDomain().getCodeSource().getLocation().toURI();
+            Path codeSource = Path.of(location);
+            if (Files.isDirectory(codeSource)) {
+                return readTree(codeSource);
+            }
+            try (FileSystem jar = FileSystems.newFileSystem(codeSource)) {
+                return readTree(jar.getPath("/"));
+            }
+        } catch (Exception e) {
+            VoiceChat.LOGGER.atWarning().withCause(e).log("Failed to list the voice chat web client.");
+            return null;
+        }
+    }
+
+    private static Map<String, byte[]> readTree(Path base) throws IOException {
+        Path root = base.resolve(ROOT);
+        if (!Files.isDirectory(root)) {
+            return null;
+        }
+        Map<String, byte[]> files = new HashMap<>();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).toList();
+        }
+        for (Path path : paths) {
+            String relative = base.relativize(path).toString().replace('\\', '/');
+            files.put(relative, Files.readAllBytes(path));
+        }
+        return files;
+    }
+
+    private byte[] readResource(String resourcePath) {
+        try (InputStream stream = classLoader.getResourceAsStream(resourcePath)) {
+            if (stream == null) {
+                return null;
+            }
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(9);
+            }
+        }) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    // Only when brotli4j is on the class path, otherwise the frontend build's .br files are used.
+    private static byte[] brotli(byte[] bytes) {
+        if (!Brotli.isAvailable()) {
+            return null;
+        }
+        EmbeddedChannel channel = new EmbeddedChannel(new BrotliEncoder());
+        try {
+            channel.writeOutbound(Unpooled.wrappedBuffer(bytes));
+            channel.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            ByteBuf chunk;
+            while ((chunk = channel.readOutbound()) != null) {
+                try {
+                    byte[] data = new byte[chunk.readableBytes()];
+                    chunk.readBytes(data);
+                    out.writeBytes(data);
+                } finally {
+                    chunk.release();
+                }
+            }
+            return out.toByteArray();
+        } catch (RuntimeException e) {
+            VoiceChat.LOGGER.atWarning().withCause(e).log("Brotli compression of the voice chat web client failed.");
+            return null;
+        } finally {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static byte[] smaller(byte[] compressed, int identityLength) {
+        return compressed != null && compressed.length < identityLength ? compressed : null;
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, String> createContentTypes() {
+        Map<String, String> types = new HashMap<>();
+        types.put("html", "text/html; charset=UTF-8");
+        types.put("js", "application/javascript");
+        types.put("css", "text/css");
+        types.put("map", "application/json");
+        types.put("json", "application/json");
+        types.put("svg", "image/svg+xml");
+        types.put("png", "image/png");
+        types.put("jpg", "image/jpeg");
+        types.put("jpeg", "image/jpeg");
+        types.put("webp", "image/webp");
+        types.put("gif", "image/gif");
+        types.put("ico", "image/x-icon");
+        types.put("woff", "font/woff");
+        types.put("woff2", "font/woff2");
+        types.put("ttf", "font/ttf");
+        types.put("ogg", "audio/ogg");
+        types.put("mp3", "audio/mpeg");
+        types.put("wav", "audio/wav");
+        return types;
+    }
+
+    private static String resolveContentType(String resourcePath) {
+        String name = resourcePath;
+        int slashIndex = name.lastIndexOf('/');
+        if (slashIndex > -1) {
+            name = name.substring(slashIndex + 1);
+        }
+        int dotIndex = name.lastIndexOf('.');
+        if (dotIndex > -1 && dotIndex < name.length() - 1) {
+            String extension = name.substring(dotIndex + 1).toLowerCase();
+            String contentType = CONTENT_TYPES.get(extension);
+            if (contentType != null) {
+                return contentType;
+            }
+        }
+        return "application/octet-stream";
+    }
+
+    // Either held in memory or, once extracted, read from file.
+    public record Variant(ByteBuf content, Path file, long length, String etag) {
+
+        // Shared by every response, duplicates of an unreleasable buffer can be written any number of times.
+        private static Variant inMemory(byte[] bytes, String etag) {
+            return new Variant(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(bytes).asReadOnly()), null, bytes.length, etag);
+        }
+    }
+
+    public record Asset(String contentType, boolean immutable, Variant identity, Variant gzip, Variant brotli) {
+
+        public boolean isCompressible() {
+            return gzip != null || brotli != null;
+        }
+
+        // Picks the smallest encoding the client accepts, identity is always acceptable here.
+        public Encoding select(String acceptEncoding) {
+            if (acceptEncoding == null || !isCompressible()) {
+                return Encoding.IDENTITY;
+            }
+            if (brotli != null && accepts(acceptEncoding, Encoding.BROTLI.token())) {
+                return Encoding.BROTLI;
+            }
+            if (gzip != null && accepts(acceptEncoding, Encoding.GZIP.token())) {
+                return Encoding.GZIP;
+            }
+            return Encoding.IDENTITY;
+        }
+
+        public Variant variant(Encoding encoding) {
+            return switch (encoding) {
+                case IDENTITY -> identity;
+                case GZIP -> gzip;
+                case BROTLI -> brotli;
+            };
+        }
+
+        private long smallestSize() {
+            long size = identity.length();
+            if (gzip != null) {
+                size = Math.min(size, gzip.length());
+            }
+            if (brotli != null) {
+                size = Math.min(size, brotli.length());
+            }
+            return size;
+        }
+
+        // An explicit entry for the coding wins over "*", q=0 rules it out.
+        private static boolean accepts(String acceptEncoding, String token) {
+            Double wildcard = null;
+            for (String part : acceptEncoding.split(",")) {
+                String[] pieces = part.trim().split(";");
+                String coding = pieces[0].trim();
+                if (coding.equalsIgnoreCase(token)) {
+                    return quality(pieces) > 0;
+                }
+                if (coding.equals("*")) {
+                    wildcard = quality(pieces);
+                }
+            }
+            return wildcard != null && wildcard > 0;
+        }
+
+        private static double quality(String[] pieces) {
+            for (int i = 1; i < pieces.length; i++) {
+                String parameter = pieces[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            return 1;
+        }
+    }
+}
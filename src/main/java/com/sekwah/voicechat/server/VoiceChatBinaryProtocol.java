@@ -0,0 +1,79 @@
+package com.sekwah.voicechat.server;
+
+import io.netty.buffer.ByteBuf;
+
+// Compact layout for the high frequency spatial updates, signaling stays as JSON.
+// All values are big endian.
+//
+// snapshot: u8 type, u16 entry count, then per entry
+//   u16 peer index, u8 flags,
+//   [FLAG_POSITION] i32 x, i32 y, i32 z (fixed point, 1/POSITION_SCALE blocks),
+//                   i16 vx, i16 vy, i16 vz (fixed point, 1/VELOCITY_SCALE blocks per second)
+//   [FLAG_ROTATION] i16 yaw, i16 pitch (radians scaled to the i16 range over -PI..PI)
+public final class VoiceChatBinaryProtocol {
+
+    public static final int TYPE_SNAPSHOT = 1;
+
+    public static final int FLAG_POSITION = 1;
+    public static final int FLAG_ROTATION = 1 << 1;
+    public static final int FLAG_ENTERED = 1 << 2;
+    public static final int FLAG_EXITED = 1 << 3;
+
+    public static final int MAX_PEER_INDEX = 0xFFFF;
+    public static final double POSITION_SCALE = 256.0;
+    public static final double VELOCITY_SCALE = 256.0;
+    private static final double ANGLE_SCALE = Short.MAX_VALUE / Math.PI;
+
+    private static final int HEADER_BYTES = 3;
+    private static final int ENTRY_BYTES = 3;
+    private static final int POSITION_BYTES = 18;
+    private static final int ROTATION_BYTES = 4;
+
+    private VoiceChatBinaryProtocol() {
+    }
+
+    public static int snapshotSize(int entries, int positions, int rotations) {
+        return HEADER_BYTES + entries * ENTRY_BYTES + positions * POSITION_BYTES + rotations * ROTATION_BYTES;
+    }
+
+    public static void writeSnapshotHeader(ByteBuf buffer, int entryCount) {
+        buffer.writeByte(TYPE_SNAPSHOT);
+        buffer.writeShort(entryCount);
+    }
+
+    public static void writeEntry(ByteBuf buffer, int peerIndex, int flags) {
+        buffer.writeShort(peerIndex);
+        buffer.writeByte(flags);
+    }
+
+    public static void writePosition(ByteBuf buffer, double x, double y, double z) {
+        buffer.writeInt(quantizePosition(x));
+        buffer.writeInt(quantizePosition(y));
+        buffer.writeInt(quantizePosition(z));
+    }
+
+    public static void writeVelocity(ByteBuf buffer, double x, double y, double z) {
+        buffer.writeShort(quantizeVelocity(x));
+        buffer.writeShort(quantizeVelocity(y));
+        buffer.writeShort(quantizeVelocity(z));
+    }
+
+    public static void writeRotation(ByteBuf buffer, float yaw, float pitch) {
+        buffer.writeShort(quantizeAngle(yaw));
+        buffer.writeShort(quantizeAngle(pitch));
+    }
+
+    private static int quantizePosition(double value) {
+        return (int) Math.round(value * POSITION_SCALE);
+    }
+
+    private static short quantizeVelocity(double value) {
+        long scaled = Math.round(value * VELOCITY_SCALE);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    private static short quantizeAngle(float radians) {
+        double wrapped = Math.IEEEremainder(radians, Math.PI * 2);
+        return (short) Math.round(wrapped * ANGLE_SCALE);
+    }
+}
@@ -0,0 +1,177 @@
+package com.sekwah.voicechat.server;
+
+import com.sekwah.voicechat.VoiceChat;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// permessage-deflate for the voice websocket. SDP offers and answers are several KB of
+// repetitive text and shrink well, small binary spatial frames are left alone as deflating
+// them costs more CPU than the few bytes it would save.
+public class VoiceChatCompression {
+
+    public enum MessageClass {
+        // JSON, signaling, presence and spatial snapshots for clients without binary support.
+        TEXT,
+        // Binary spatial snapshots.
+        BINARY
+    }
+
+    private final boolean enabled;
+    private final int level;
+    private final int minBytes;
+    private final boolean compressBinary;
+    private final boolean contextTakeover;
+    private final int maxMessageBytes;
+    private final Map<MessageClass, ClassStats> stats = new EnumMap<>(MessageClass.class);
+
+    public VoiceChatCompression(boolean enabled, int level, int minBytes, boolean compressBinary, boolean contextTakeover, int maxMessageBytes) {
+        this.enabled = enabled;
+        this.level = Math.max(0, Math.min(9, level));
+        this.minBytes = Math.max(0, minBytes);
+        this.compressBinary = compressBinary;
+        this.contextTakeover = contextTakeover;
+        this.maxMessageBytes = maxMessageBytes;
+        for (MessageClass messageClass : MessageClass.values()) {
+            stats.put(messageClass, new ClassStats());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Goes in front of the WebSocketServerProtocolHandler, which has to allow extensions.
+    public void addHandlers(ChannelPipeline pipeline) {
+        if (!enabled) {
+            return;
+        }
+        Probe probe = new Probe();
+        pipeline.addLast(probe.wire);
+        // Without context takeover the client is asked to reset its window after each message,
+        // the server resets its own whenever the client asks for it.
+        pipeline.addLast(new WebSocketServerExtensionHandler(new PerMessageDeflateServerExtensionHandshaker(
+                level,
+                false,
+                PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE,
+                true,
+                !contextTakeover,
+                new FilterProvider(),
+                maxMessageBytes
+        )));
+        // The deflate encoder is inserted between these two once the handshake completes.
+        pipeline.addLast(probe.raw);
+    }
+
+    public void report() {
+        if (!enabled) {
+            return;
+        }
+        for (Map.Entry<MessageClass, ClassStats> entry : stats.entrySet()) {
+            ClassStats classStats = entry.getValue();
+            long frames = classStats.frames.sumThenReset();
+            long raw = classStats.rawBytes.sumThenReset();
+            long wire = classStats.wireBytes.sumThenReset();
+            long nanos = classStats.nanos.sumThenReset();
+            if (frames == 0) {
+                continue;
+            }
+            VoiceChat.LOGGER.atFine().log(
+                "Voice chat %s frames: %s sent, %s bytes before deflate, %s after (%.1f%%), %.1f us deflating per frame",
+                entry.getKey(), frames, raw, wire, raw > 0 ? wire * 100.0 / raw : 100.0, nanos / 1000.0 / frames
+            );
+        }
+    }
+
+    private boolean mustSkip(WebSocketFrame frame) {
+        if (frame instanceof BinaryWebSocketFrame && !compressBinary) {
+            return true;
+        }
+        return frame.content().readableBytes() < minBytes;
+    }
+
+    private static MessageClass classify(Object msg) {
+        if (msg instanceof TextWebSocketFrame) {
+            return MessageClass.TEXT;
+        }
+        if (msg instanceof BinaryWebSocketFrame) {
+            return MessageClass.BINARY;
+        }
+        return null;
+    }
+
+    private final class FilterProvider implements WebSocketExtensionFilterProvider {
+        @Override
+        public WebSocketExtensionFilter encoderFilter() {
+            return VoiceChatCompression.this::mustSkip;
+        }
+
+        // Whatever the client chose to compress still has to be inflated.
+        @Override
+        public WebSocketExtensionFilter decoderFilter() {
+            return WebSocketExtensionFilter.NEVER_SKIP;
+        }
+    }
+
+    // Measures each frame either side of the deflate encoder. The encoder runs inside the
+    // write call so the frame reaches the wire side before the raw side's write returns.
+    private final class Probe {
+        private MessageClass pendingClass;
+        private int pendingBytes;
+        private long pendingStart;
+
+        private final ChannelHandler raw = new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                MessageClass messageClass = classify(msg);
+                if (messageClass == null) {
+                    super.write(ctx, msg, promise);
+                    return;
+                }
+                pendingClass = messageClass;
+                pendingBytes = ((WebSocketFrame) msg).content().readableBytes();
+                pendingStart = System.nanoTime();
+                try {
+                    super.write(ctx, msg, promise);
+                } finally {
+                    pendingClass = null;
+                }
+            }
+        };
+
+        private final ChannelHandler wire = new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                if (pendingClass != null && msg instanceof WebSocketFrame frame) {
+                    ClassStats classStats = stats.get(pendingClass);
+                    classStats.frames.increment();
+                    classStats.rawBytes.add(pendingBytes);
+                    classStats.wireBytes.add(frame.content().readableBytes());
+                    classStats.nanos.add(System.nanoTime() - pendingStart);
+                    pendingClass = null;
+                }
+                super.write(ctx, msg, promise);
+            }
+        };
+    }
+
+    private static final class ClassStats {
+        private final LongAdder frames = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+    }
+}
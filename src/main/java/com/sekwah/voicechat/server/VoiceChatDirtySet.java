@@ -0,0 +1,34 @@
+package com.sekwah.voicechat.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.function.Consumer;
+
+// Clients marked for the broadcast this tick, deduplicated by peer index. Marked and drained on
+// the world thread only, and the storage is kept between ticks so marking allocates nothing once
+// it has grown to the world's player count.
+final class VoiceChatDirtySet {
+
+    private final BitSet marked = new BitSet();
+    private final ArrayList<String> ids = new ArrayList<>();
+
+    void mark(String id, int peerIndex) {
+        if (peerIndex < 0 || marked.get(peerIndex)) {
+            return;
+        }
+        marked.set(peerIndex);
+        ids.add(id);
+    }
+
+    void drain(Consumer<String> consumer) {
+        try {
+            // Indexed rather than iterated, an iterator would be an allocation per tick.
+            for (int i = 0; i < ids.size(); i++) {
+                consumer.accept(ids.get(i));
+            }
+        } finally {
+            ids.clear();
+            marked.clear();
+        }
+    }
+}
@@ -1,32 +1,48 @@
 package com.sekwah.voicechat.server;
 
+import com.sekwah.voicechat.VoiceChat;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
 
 public class VoiceChatHttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
 
-    private static final Map<String, String> CONTENT_TYPES = createContentTypes();
+    // Content hashed files can be kept forever, anything else is revalidated against its ETag.
+    private static final String IMMUTABLE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE_CACHE_CONTROL = "no-cache";
+    private static final int FILE_CHUNK_SIZE = 16 * 1024;
+
     private final boolean devForwardingEnabled;
-    public VoiceChatHttpHandler(boolean devForwardingEnabled) {
+    private final VoiceChatAssetCache assets;
+
+    public VoiceChatHttpHandler(boolean devForwardingEnabled, VoiceChatAssetCache assets) {
         this.devForwardingEnabled = devForwardingEnabled;
+        this.assets = assets;
     }
 
     @Override
@@ -121,76 +137,182 @@ public class VoiceChatHttpHandler extends SimpleChannelInboundHandler<FullHttpRe
     }
 
     private boolean sendResource(ChannelHandlerContext ctx, FullHttpRequest request, String resourcePath) {
-        byte[] bytes = readResource(resourcePath);
-        if (bytes == null) {
+        VoiceChatAssetCache.Asset asset = assets.get(resourcePath);
+        if (asset == null) {
             return false;
         }
-        String contentType = resolveContentType(resourcePath);
-        ByteBuf content = Unpooled.wrappedBuffer(bytes);
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-store");
-        writeResponse(ctx, request, response);
-        return true;
-    }
+        String rangeHeader = request.headers().get(HttpHeaderNames.RANGE);
+        // Ranges always refer to the uncompressed file so offsets mean the same to every client.
+        VoiceChatAssetCache.Encoding encoding = rangeHeader != null
+                ? VoiceChatAssetCache.Encoding.IDENTITY
+                : asset.select(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        VoiceChatAssetCache.Variant variant = asset.variant(encoding);
+        if (matchesETag(request.headers().get(HttpHeaderNames.IF_NONE_MATCH), variant.etag())) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+            setCacheHeaders(response, asset, variant);
+            writeResponse(ctx, request, response);
+            return true;
+        }
+
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        long start = 0;
+        long length = variant.length();
+        // A stale If-Range means the client's partial copy is outdated, so it gets everything.
+        String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+        ByteRange range = rangeHeader != null && (ifRange == null || ifRange.trim().equals(variant.etag()))
+                ? parseRange(rangeHeader, variant.length())
+                : null;
+        if (range == ByteRange.UNSATISFIABLE) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + variant.length());
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+            writeResponse(ctx, request, response);
+            return true;
+        }
+        if (range != null) {
+            status = HttpResponseStatus.PARTIAL_CONTENT;
+            start = range.start();
+            length = range.end() - range.start() + 1;
+        }
+
+        Object fileBody = null;
+        if (variant.file() != null) {
+            FileChannel file = null;
+            try {
+                file = FileChannel.open(variant.file(), StandardOpenOption.READ);
+                fileBody = ctx.pipeline().get(SslHandler.class) == null
+                        // Plain connections hand the file straight to the socket with sendfile.
+                        ? new DefaultFileRegion(file, start, length)
+                        // TLS has to encrypt in user space, so it is streamed in chunks instead.
+                        : new HttpChunkedInput(new ChunkedNioFile(file, start, length, FILE_CHUNK_SIZE));
+            } catch (IOException e) {
+                closeQuietly(file);
+                VoiceChat.LOGGER.atWarning().withCause(e).log("Failed to open %s.", variant.file());
+                sendResponse(ctx, request, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Failed to read file.");
+                return true;
+            }
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, asset.contentType());
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, length);
+        if (encoding.token() != null) {
+            response.headers().set(HttpHeaderNames.CONTENT_ENCODING, encoding.token());
+        }
+        if (range != null) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE,
+                    "bytes " + range.start() + "-" + range.end() + "/" + variant.length());
+        }
+        if (encoding == VoiceChatAssetCache.Encoding.IDENTITY) {
+            response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        }
+        setCacheHeaders(response, asset, variant);
 
-    private void writeResponse(ChannelHandlerContext ctx, FullHttpRequest request, FullHttpResponse response) {
         boolean keepAlive = HttpUtil.isKeepAlive(request);
         if (keepAlive) {
             response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-            ctx.writeAndFlush(response);
+        }
+        ctx.write(response);
+        ChannelFuture done;
+        if (fileBody == null) {
+            done = ctx.writeAndFlush(new DefaultLastHttpContent(variant.content().slice((int) start, (int) length)));
+        } else if (fileBody instanceof DefaultFileRegion) {
+            ctx.write(fileBody);
+            done = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
         } else {
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+            // HttpChunkedInput ends with the last content itself.
+            done = ctx.writeAndFlush(fileBody);
         }
+        if (!keepAlive) {
+            done.addListener(ChannelFutureListener.CLOSE);
+        }
+        return true;
     }
 
-    private byte[] readResource(String resourcePath) {
-        try (InputStream stream = getClass().getClassLoader().getResourceAsStream(resourcePath)) {
-            if (stream == null) {
-                return null;
+    private void closeQuietly(FileChannel file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void setCacheHeaders(HttpResponse response, VoiceChatAssetCache.Asset asset, VoiceChatAssetCache.Variant variant) {
+        response.headers().set(HttpHeaderNames.ETAG, variant.etag());
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, asset.immutable() ? IMMUTABLE_CACHE_CONTROL : REVALIDATE_CACHE_CONTROL);
+        if (asset.isCompressible()) {
+            response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+    }
+
+    // Only a single "bytes=" range is honoured, anything else is served in full. Returns null
+    // when the whole file should be sent.
+    private ByteRange parseRange(String header, long size) {
+        String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = value.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range, the last N bytes.
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return ByteRange.UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, size - suffix), size - 1);
+            }
+            long start = Long.parseLong(first);
+            if (start >= size) {
+                return ByteRange.UNSATISFIABLE;
             }
-            return stream.readAllBytes();
-        } catch (IOException e) {
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            return end < start ? null : new ByteRange(start, end);
+        } catch (NumberFormatException e) {
             return null;
         }
     }
 
-    private static Map<String, String> createContentTypes() {
-        Map<String, String> types = new HashMap<>();
-        types.put("html", "text/html; charset=UTF-8");
-        types.put("js", "application/javascript");
-        types.put("css", "text/css");
-        types.put("map", "application/json");
-        types.put("json", "application/json");
-        types.put("svg", "image/svg+xml");
-        types.put("png", "image/png");
-        types.put("jpg", "image/jpeg");
-        types.put("jpeg", "image/jpeg");
-        types.put("webp", "image/webp");
-        types.put("gif", "image/gif");
-        types.put("ico", "image/x-icon");
-        types.put("woff", "font/woff");
-        types.put("woff2", "font/woff2");
-        types.put("ttf", "font/ttf");
-        return types;
+    // If-None-Match uses the weak comparison, so W/ prefixes from proxies still match.
+    private boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if (value.equals("*")) {
+                return true;
+            }
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private String resolveContentType(String resourcePath) {
-        String name = resourcePath;
-        int slashIndex = name.lastIndexOf('/');
-        if (slashIndex > -1) {
-            name = name.substring(slashIndex + 1);
-        }
-        int dotIndex = name.lastIndexOf('.');
-        if (dotIndex > -1 && dotIndex < name.length() - 1) {
-            String extension = name.substring(dotIndex + 1).toLowerCase();
-            String contentType = CONTENT_TYPES.get(extension);
-            if (contentType != null) {
-                return contentType;
-            }
+    private void writeResponse(ChannelHandlerContext ctx, FullHttpRequest request, FullHttpResponse response) {
+        boolean keepAlive = HttpUtil.isKeepAlive(request);
+        if (keepAlive) {
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            ctx.writeAndFlush(response);
+        } else {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
         }
-        return "application/octet-stream";
+    }
+
+    private record ByteRange(long start, long end) {
+        private static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
     }
 
     private String normalizeResourcePath(String relativePath) {
@@ -0,0 +1,97 @@
+package com.sekwah.voicechat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Tracks which clients are within hearing range of each other so spatial updates
+// only go to listeners that can actually use them. Visibility is symmetric.
+public class VoiceChatInterestManager {
+
+    private final VoiceChatSpatialIndex index;
+    private final Map<String, Set<String>> visiblePeers = new ConcurrentHashMap<>();
+    // Scratch space for refresh, kept so it does not grow again every call.
+    private final ArrayList<String> nearby = new ArrayList<>();
+
+    public VoiceChatInterestManager(VoiceChatSpatialIndex index) {
+        this.index = index;
+    }
+
+    public void updatePosition(String id, String world, double x, double y, double z) {
+        index.update(id, world, x, y, z);
+    }
+
+    public VoiceChatSpatialIndex.Entry getPosition(String id) {
+        return index.get(id);
+    }
+
+    // World thread only. Peers still visible are checked by distance rather than collected into
+    // a set, so a refresh that changes nothing allocates nothing.
+    public void refresh(String id, double radius, RangeListener listener) {
+        VoiceChatSpatialIndex.Entry self = index.get(id);
+        if (self == null) {
+            return;
+        }
+        nearby.clear();
+        index.collectWithin(self.world(), self.x(), self.y(), self.z(), radius, nearby);
+
+        Set<String> current = visiblePeersOf(id);
+        for (int i = 0; i < nearby.size(); i++) {
+            String peerId = nearby.get(i);
+            if (!peerId.equals(id) && current.add(peerId)) {
+                visiblePeersOf(peerId).add(id);
+                listener.onEnterRange(id, peerId);
+            }
+        }
+        double radiusSquared = radius * radius;
+        Iterator<String> iterator = current.iterator();
+        while (iterator.hasNext()) {
+            String peerId = iterator.next();
+            // The same test collectWithin applies.
+            VoiceChatSpatialIndex.Entry peer = index.get(peerId);
+            if (peer != null && peer.world().equals(self.world())
+                    && peer.distanceSquared(self.x(), self.y(), self.z()) <= radiusSquared) {
+                continue;
+            }
+            iterator.remove();
+            Set<String> peerVisible = visiblePeers.get(peerId);
+            if (peerVisible != null) {
+                peerVisible.remove(id);
+            }
+            listener.onExitRange(id, peerId);
+        }
+    }
+
+    public Set<String> getVisiblePeers(String id) {
+        Set<String> peers = visiblePeers.get(id);
+        return peers != null ? Collections.unmodifiableSet(peers) : Set.of();
+    }
+
+    public void remove(String id) {
+        index.remove(id);
+        Set<String> peers = visiblePeers.remove(id);
+        if (peers == null) {
+            return;
+        }
+        for (String peerId : peers) {
+            Set<String> peerVisible = visiblePeers.get(peerId);
+            if (peerVisible != null) {
+                peerVisible.remove(id);
+            }
+        }
+    }
+
+    private Set<String> visiblePeersOf(String id) {
+        return visiblePeers.computeIfAbsent(id, ignored -> ConcurrentHashMap.newKeySet());
+    }
+
+    public interface RangeListener {
+        // Called once per pair, the listener is expected to notify both sides.
+        void onEnterRange(String id, String peerId);
+
+        void onExitRange(String id, String peerId);
+    }
+}
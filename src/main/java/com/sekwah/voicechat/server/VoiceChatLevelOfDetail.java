@@ -0,0 +1,256 @@
+package com.sekwah.voicechat.server;
+
+import com.hypixel.hytale.server.core.util.Config;
+import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Lowers the update rate for peers that are further away from a listener, as small changes
+// there are barely audible. Each listener/peer pair remembers what it was last sent, so
+// skipped updates are coalesced into the next one the pair is due rather than lost.
+public class VoiceChatLevelOfDetail {
+
+    public enum Tier {
+        // Inside FullVolumeRange, every update including rotation.
+        NEAR,
+        // First half of FallOffRange, reduced rate including rotation.
+        MID,
+        // Rest of the range, position only at the lowest rate.
+        FAR
+    }
+
+    private final Config<VoiceChatConfig> config;
+    private final Map<String, PeerState> peers = new HashMap<>();
+    private final Map<String, Map<String, PairState>> pairs = new HashMap<>();
+    // Peers that have at least one pair that has not been sent their latest state yet.
+    private final Set<String> pendingPeers = new LinkedHashSet<>();
+    private final Map<Tier, TierStats> stats = new EnumMap<>(Tier.class);
+
+    public VoiceChatLevelOfDetail(Config<VoiceChatConfig> config) {
+        this.config = config;
+        for (Tier tier : Tier.values()) {
+            stats.put(tier, new TierStats());
+        }
+    }
+
+    public Tier tierFor(double distance, VoiceChatConfig current) {
+        if (distance <= current.getFullVolumeRange()) {
+            return Tier.NEAR;
+        }
+        if (distance <= current.getFullVolumeRange() + current.getFallOffRange() / 2) {
+            return Tier.MID;
+        }
+        return Tier.FAR;
+    }
+
+    synchronized void publish(VoiceChatSnapshotBatch.PeerUpdate update, long now) {
+        PeerState state = peers.computeIfAbsent(update.id, ignored -> new PeerState());
+        if (update.hasPosition) {
+            state.position = update;
+            state.positionNanos = now;
+            state.positionVersion++;
+        }
+        if (update.hasRotation) {
+            state.rotation = update;
+            state.rotationVersion++;
+        }
+        pendingPeers.add(update.id);
+    }
+
+    // A newly visible peer gets everything known about it straight away.
+    synchronized VoiceChatSnapshotBatch.PeerUpdate enter(String recipientId, String peerId, long now) {
+        PeerState state = peers.get(peerId);
+        if (state == null) {
+            return null;
+        }
+        PairState pair = pair(recipientId, peerId);
+        pair.sent = true;
+        pair.lastSentNanos = now;
+        pair.positionVersion = state.positionVersion;
+        pair.rotationVersion = state.rotationVersion;
+        return entry(peerId, state, state.position != null, state.rotation != null, now, config.get());
+    }
+
+    synchronized void exit(String recipientId, String peerId) {
+        Map<String, PairState> recipientPairs = pairs.get(recipientId);
+        if (recipientPairs != null) {
+            recipientPairs.remove(peerId);
+        }
+    }
+
+    synchronized void collectDue(VoiceChatInterestManager interest, long now, BiConsumer<String, VoiceChatSnapshotBatch.PeerUpdate> out) {
+        VoiceChatConfig current = config.get();
+        Iterator<String> iterator = pendingPeers.iterator();
+        while (iterator.hasNext()) {
+            String peerId = iterator.next();
+            PeerState state = peers.get(peerId);
+            VoiceChatSpatialIndex.Entry peerPosition = interest.getPosition(peerId);
+            if (state == null || peerPosition == null) {
+                iterator.remove();
+                continue;
+            }
+            boolean stillPending = false;
+            for (String recipientId : interest.getVisiblePeers(peerId)) {
+                VoiceChatSpatialIndex.Entry recipientPosition = interest.getPosition(recipientId);
+                if (recipientPosition == null) {
+                    continue;
+                }
+                Tier tier = tierFor(Math.sqrt(peerPosition.distanceSquared(recipientPosition.x(), recipientPosition.y(), recipientPosition.z())), current);
+                PairState pair = pair(recipientId, peerId);
+                boolean position = pair.positionVersion != state.positionVersion;
+                // Far pairs pick up rotation once they move closer and the peer turns again.
+                boolean rotation = tier != Tier.FAR && pair.rotationVersion != state.rotationVersion;
+                if (!position && !rotation) {
+                    continue;
+                }
+                if (pair.sent && now - pair.lastSentNanos < intervalNanos(tier, current)) {
+                    stillPending = true;
+                    continue;
+                }
+                TierStats tierStats = stats.get(tier);
+                tierStats.sent.increment();
+                if (position && pair.sent) {
+                    tierStats.coalesced.add(Math.max(0, state.positionVersion - pair.positionVersion - 1));
+                }
+                pair.sent = true;
+                pair.lastSentNanos = now;
+                if (position) {
+                    pair.positionVersion = state.positionVersion;
+                }
+                if (rotation) {
+                    pair.rotationVersion = state.rotationVersion;
+                }
+                out.accept(recipientId, entry(peerId, state, position, rotation, now, current));
+            }
+            if (!stillPending) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void remove(String id) {
+        peers.remove(id);
+        pendingPeers.remove(id);
+        pairs.remove(id);
+        for (Map<String, PairState> recipientPairs : pairs.values()) {
+            recipientPairs.remove(id);
+        }
+    }
+
+    // Entries sent to listeners in the tier during the last report period.
+    public long getSentCount(Tier tier) {
+        return stats.get(tier).lastSent;
+    }
+
+    // Position updates that were folded into a later one instead of being sent.
+    public long getCoalescedCount(Tier tier) {
+        return stats.get(tier).lastCoalesced;
+    }
+
+    public void report(String world) {
+        for (TierStats tierStats : stats.values()) {
+            tierStats.roll();
+        }
+        VoiceChat.LOGGER.atFine().log(
+            "Voice peer entries sent by tier in %s: near %s, mid %s (%s coalesced), far %s (%s coalesced)",
+            world,
+            getSentCount(Tier.NEAR),
+            getSentCount(Tier.MID), getCoalescedCount(Tier.MID),
+            getSentCount(Tier.FAR), getCoalescedCount(Tier.FAR)
+        );
+    }
+
+    private VoiceChatSnapshotBatch.PeerUpdate entry(String peerId, PeerState state, boolean position, boolean rotation, long now, VoiceChatConfig current) {
+        VoiceChatSnapshotBatch.PeerUpdate positionUpdate = position ? state.position : null;
+        VoiceChatSnapshotBatch.PeerUpdate rotationUpdate = rotation ? state.rotation : null;
+        boolean fresh = positionUpdate == null || state.positionNanos == now;
+        // Reuse this tick's update where it matches so its JSON is only built once.
+        if (fresh) {
+            if (positionUpdate != null && (rotationUpdate == null || rotationUpdate == positionUpdate) && positionUpdate.hasRotation == (rotationUpdate != null)) {
+                return positionUpdate;
+            }
+            if (positionUpdate == null && rotationUpdate != null && !rotationUpdate.hasPosition) {
+                return rotationUpdate;
+            }
+        }
+        VoiceChatSnapshotBatch.PeerUpdate entry = new VoiceChatSnapshotBatch.PeerUpdate(peerId);
+        if (positionUpdate != null) {
+            // Move a delayed position on by its velocity so it lines up with where other
+            // listeners are already extrapolating the peer to.
+            double maxSeconds = current.getDeadReckoningMaxSeconds();
+            double age = (now - state.positionNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            double elapsed = Math.min(age, Math.max(0, maxSeconds));
+            boolean expired = age >= maxSeconds;
+            entry.hasPosition = true;
+            entry.x = positionUpdate.x + positionUpdate.velocityX * elapsed;
+            entry.y = positionUpdate.y + positionUpdate.velocityY * elapsed;
+            entry.z = positionUpdate.z + positionUpdate.velocityZ * elapsed;
+            entry.velocityX = expired ? 0 : positionUpdate.velocityX;
+            entry.velocityY = expired ? 0 : positionUpdate.velocityY;
+            entry.velocityZ = expired ? 0 : positionUpdate.velocityZ;
+        }
+        if (rotationUpdate != null) {
+            entry.hasRotation = true;
+            entry.pitch = rotationUpdate.pitch;
+            entry.yaw = rotationUpdate.yaw;
+            entry.roll = rotationUpdate.roll;
+        }
+        return entry;
+    }
+
+    private long intervalNanos(Tier tier, VoiceChatConfig current) {
+        int rate = current.getPeerUpdatesPerSecond();
+        int divisor = switch (tier) {
+            case NEAR -> 1;
+            case MID -> current.getMidRangeUpdateDivisor();
+            case FAR -> current.getFarRangeUpdateDivisor();
+        };
+        if (rate <= 0 || divisor <= 1) {
+            return 0;
+        }
+        long base = TimeUnit.SECONDS.toNanos(1) / rate;
+        // Half an update of slack so tick jitter does not push a send back a whole update.
+        return base * divisor - base / 2;
+    }
+
+    private PairState pair(String recipientId, String peerId) {
+        return pairs.computeIfAbsent(recipientId, ignored -> new HashMap<>())
+                .computeIfAbsent(peerId, ignored -> new PairState());
+    }
+
+    private static final class PeerState {
+        private VoiceChatSnapshotBatch.PeerUpdate position;
+        private long positionNanos;
+        private long positionVersion;
+        private VoiceChatSnapshotBatch.PeerUpdate rotation;
+        private long rotationVersion;
+    }
+
+    private static final class PairState {
+        private boolean sent;
+        private long lastSentNanos;
+        private long positionVersion;
+        private long rotationVersion;
+    }
+
+    private static final class TierStats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+        private volatile long lastSent;
+        private volatile long lastCoalesced;
+
+        private void roll() {
+            lastSent = sent.sumThenReset();
+            lastCoalesced = coalesced.sumThenReset();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.sekwah.voicechat.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+
+// Per channel outbound lanes so connection setup does not wait behind position traffic.
+// Signaling is always written straight away, presence and spatial frames wait here while
+// the channel is over its high water mark and are released highest lane first once it drains.
+public class VoiceChatOutboundScheduler extends ChannelInboundHandlerAdapter {
+
+    public enum Priority {
+        // offer/answer/ice and connect/disconnect directives.
+        SIGNALING,
+        // Joins, leaves, mute and push to talk.
+        PRESENCE,
+        // Position and rotation snapshots.
+        SPATIAL
+    }
+
+    // Only touched on the channel's event loop.
+    private final Map<Priority, ArrayDeque<WebSocketFrame>> lanes = new EnumMap<>(Priority.class);
+    private volatile ChannelHandlerContext ctx;
+
+    public VoiceChatOutboundScheduler() {
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new ArrayDeque<>());
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releaseQueued();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releaseQueued();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drain(true);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    // Without flush the frame is only written, the caller is expected to flush the channel later.
+    public void send(WebSocketFrame frame, Priority priority, boolean flush) {
+        ChannelHandlerContext context = ctx;
+        if (context == null) {
+            frame.release();
+            return;
+        }
+        EventExecutor executor = context.executor();
+        if (executor.inEventLoop()) {
+            enqueue(frame, priority, flush);
+        } else {
+            executor.execute(() -> enqueue(frame, priority, flush));
+        }
+    }
+
+    private void enqueue(WebSocketFrame frame, Priority priority, boolean flush) {
+        if (!ctx.channel().isActive()) {
+            frame.release();
+            return;
+        }
+        lanes.get(priority).add(frame);
+        drain(flush);
+    }
+
+    private void drain(boolean flush) {
+        boolean wrote = false;
+        for (Priority priority : Priority.values()) {
+            ArrayDeque<WebSocketFrame> lane = lanes.get(priority);
+            while (!lane.isEmpty()) {
+                if (priority != Priority.SIGNALING && !ctx.channel().isWritable()) {
+                    if (wrote && flush) {
+                        ctx.flush();
+                    }
+                    return;
+                }
+                ctx.write(lane.poll());
+                wrote = true;
+            }
+        }
+        if (wrote && flush) {
+            ctx.flush();
+        }
+    }
+
+    private void releaseQueued() {
+        for (ArrayDeque<WebSocketFrame> lane : lanes.values()) {
+            WebSocketFrame frame;
+            while ((frame = lane.poll()) != null) {
+                frame.release();
+            }
+        }
+    }
+}
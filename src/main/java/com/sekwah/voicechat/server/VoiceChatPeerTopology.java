@@ -0,0 +1,162 @@
+package com.sekwah.voicechat.server;
+
+import com.google.gson.JsonObject;
+import com.hypixel.hytale.server.core.util.Config;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Decides which clients hold a WebRTC connection to each other so crowded areas do not turn
+// into a full mesh. Peers in range are paired up nearest first until each side reaches
+// MaxPeerConnections, then clients are told to connect or disconnect to match.
+public class VoiceChatPeerTopology {
+
+    private final Config<VoiceChatConfig> config;
+    private final Map<String, Set<String>> connections = new HashMap<>();
+    private boolean rebalanceRequested;
+    private boolean hasRebalanced;
+    private long lastRebalanceNanos;
+
+    public VoiceChatPeerTopology(Config<VoiceChatConfig> config) {
+        this.config = config;
+    }
+
+    public synchronized boolean isConnected(String id, String peerId) {
+        Set<String> peers = connections.get(id);
+        return peers != null && peers.contains(peerId);
+    }
+
+    public synchronized void requestRebalance() {
+        rebalanceRequested = true;
+    }
+
+    public synchronized void rebalanceIfRequested(VoiceChatRoom room, VoiceChatWorldRoom worldRoom) {
+        if (!rebalanceRequested) {
+            return;
+        }
+        VoiceChatConfig current = config.get();
+        // Every pair in range is scored and sorted, in a crowd some client's range refreshes on
+        // nearly every tick, so the pass is rate limited. Requests made meanwhile stay pending
+        // and are covered by the next pass.
+        long now = System.nanoTime();
+        long interval = (long) (Math.max(0, current.getPeerRebalanceIntervalSeconds()) * 1_000_000_000L);
+        if (hasRebalanced && now - lastRebalanceNanos < interval) {
+            return;
+        }
+        rebalanceRequested = false;
+        hasRebalanced = true;
+        lastRebalanceNanos = now;
+
+        int maxConnections = current.getMaxPeerConnections();
+        double switchMargin = current.getPeerConnectionSwitchMargin();
+        VoiceChatInterestManager interest = worldRoom.getInterest();
+        List<Candidate> candidates = new ArrayList<>();
+        for (String id : worldRoom.getMembers()) {
+            VoiceChatSpatialIndex.Entry self = interest.getPosition(id);
+            if (self == null) {
+                continue;
+            }
+            for (String peerId : interest.getVisiblePeers(id)) {
+                // Each pair once.
+                if (id.compareTo(peerId) >= 0) {
+                    continue;
+                }
+                VoiceChatSpatialIndex.Entry peer = interest.getPosition(peerId);
+                if (peer == null) {
+                    continue;
+                }
+                double distance = Math.sqrt(self.distanceSquared(peer.x(), peer.y(), peer.z()));
+                // Existing connections only lose their slot to a peer that is clearly closer,
+                // otherwise two peers at a similar distance would keep swapping.
+                double score = isConnected(id, peerId) ? distance - switchMargin : distance;
+                candidates.add(new Candidate(id, peerId, score));
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(Candidate::score));
+
+        Map<String, Set<String>> desired = new HashMap<>();
+        for (Candidate candidate : candidates) {
+            Set<String> selfPeers = desired.computeIfAbsent(candidate.id(), ignored -> new HashSet<>());
+            Set<String> otherPeers = desired.computeIfAbsent(candidate.peerId(), ignored -> new HashSet<>());
+            if (maxConnections > 0 && (selfPeers.size() >= maxConnections || otherPeers.size() >= maxConnections)) {
+                continue;
+            }
+            selfPeers.add(candidate.peerId());
+            otherPeers.add(candidate.id());
+        }
+
+        for (Map.Entry<String, Set<String>> entry : connections.entrySet()) {
+            Set<String> keep = desired.getOrDefault(entry.getKey(), Set.of());
+            for (String peerId : entry.getValue()) {
+                if (!keep.contains(peerId)) {
+                    sendDisconnect(room, entry.getKey(), peerId);
+                }
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : desired.entrySet()) {
+            String id = entry.getKey();
+            Set<String> existing = connections.getOrDefault(id, Set.of());
+            for (String peerId : entry.getValue()) {
+                if (!existing.contains(peerId)) {
+                    // Only one side makes the offer.
+                    sendConnect(room, id, peerId, id.compareTo(peerId) < 0);
+                }
+            }
+        }
+        connections.clear();
+        desired.forEach((id, peers) -> {
+            if (!peers.isEmpty()) {
+                connections.put(id, peers);
+            }
+        });
+    }
+
+    // The peer-leave broadcast already tells the other side to drop the connection.
+    public synchronized void remove(String id) {
+        Set<String> peers = connections.remove(id);
+        if (peers == null) {
+            return;
+        }
+        for (String peerId : peers) {
+            Set<String> peerConnections = connections.get(peerId);
+            if (peerConnections != null) {
+                peerConnections.remove(id);
+            }
+        }
+        // Frees up slots that other clients may now fill.
+        rebalanceRequested = true;
+    }
+
+    // The client moved to another world but is still connected, so both sides are told.
+    public synchronized void leave(VoiceChatRoom room, String id) {
+        for (String peerId : connections.getOrDefault(id, Set.of())) {
+            sendDisconnect(room, id, peerId);
+            sendDisconnect(room, peerId, id);
+        }
+        remove(id);
+    }
+
+    private void sendConnect(VoiceChatRoom room, String id, String peerId, boolean initiator) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "connect");
+        message.addProperty("id", peerId);
+        message.addProperty("initiator", initiator);
+        room.sendTo(id, message);
+    }
+
+    private void sendDisconnect(VoiceChatRoom room, String id, String peerId) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "disconnect");
+        message.addProperty("id", peerId);
+        room.sendTo(id, message);
+    }
+
+    private record Candidate(String id, String peerId, double score) {
+    }
+}
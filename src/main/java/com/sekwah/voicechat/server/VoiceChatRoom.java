@@ -2,36 +2,252 @@ package com.sekwah.voicechat.server;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.hypixel.hytale.server.core.util.Config;
+import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.server.VoiceChatOutboundScheduler.Priority;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
-// For now there is one giant global room for testing purposes.
-// May make it so there's a room per world in the future.
+// Every connected client, used for signaling. Spatial state lives in a VoiceChatWorldRoom
+// per world so players only hear about others in the same world.
 public class VoiceChatRoom {
 
     private final Map<String, Channel> clients = new ConcurrentHashMap<>();
     private final Map<UUID, String> clientIdsByUser = new ConcurrentHashMap<>();
     private final Map<String, UUID> userIdsByClient = new ConcurrentHashMap<>();
-    private final java.util.concurrent.atomic.AtomicBoolean fullSyncRequested = new java.util.concurrent.atomic.AtomicBoolean(false);
+    private final Map<String, Integer> peerIndices = new ConcurrentHashMap<>();
+    private final Set<String> binaryClients = ConcurrentHashMap.newKeySet();
+    private final BitSet usedPeerIndices = new BitSet();
+    // Clients that still need their initial spatial snapshot.
+    private final Set<String> pendingJoins = ConcurrentHashMap.newKeySet();
+    // Latest mute/ptt message per client. Each client's messages keep the order they were last
+    // changed in, there is no order between clients.
+    private final Map<String, Map<String, JsonObject>> peerStates = new ConcurrentHashMap<>();
+    private final Map<String, VoiceChatWorldRoom> worldRooms = new ConcurrentHashMap<>();
+    private final Map<String, String> worldsByClient = new ConcurrentHashMap<>();
+    // World each player entity is currently in, whether or not they have a session.
+    private final Map<UUID, String> playerWorlds = new ConcurrentHashMap<>();
+    // Users whose session opened or closed, queued for the world they are in so each world
+    // thread only sees its own players.
+    private final Map<String, Queue<UUID>> sessionChanges = new ConcurrentHashMap<>();
+    // Held by remove and by joinWorld when it changes which world a client is in.
+    private final Object membershipLock = new Object();
+    private final Config<VoiceChatConfig> config;
+    private final ThreadLocal<Set<Channel>> batchedChannels = new ThreadLocal<>();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
 
-    public void register(UUID userId, String id, Channel channel) {
+    private final ExecutorService fanOutExecutor;
+    private final VoiceChatCompression compression;
+
+    public VoiceChatRoom(Config<VoiceChatConfig> config) {
+        this.config = config;
+        VoiceChatConfig current = config.get();
+        // Read once, only connections opened after a restart pick up changes.
+        this.compression = new VoiceChatCompression(
+                current.isWebSocketCompressionEnabled(),
+                current.getWebSocketCompressionLevel(),
+                current.getWebSocketCompressionMinBytes(),
+                current.isWebSocketCompressBinary(),
+                current.isWebSocketContextTakeover(),
+                // Inflated messages are held to the same limit as the HTTP aggregator.
+                65536
+        );
+        int fanOutThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        this.fanOutExecutor = Executors.newFixedThreadPool(fanOutThreads, runnable -> {
+            Thread thread = new Thread(runnable, "voicechat-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Builds and sends the per recipient snapshots so it stays off the world tick threads.
+    public Executor getFanOutExecutor() {
+        return fanOutExecutor;
+    }
+
+    public void shutdown() {
+        fanOutExecutor.shutdown();
+    }
+
+    public void register(UUID userId, String id, Channel channel, boolean binary) {
+        peerIndices.put(id, allocatePeerIndex());
+        if (binary) {
+            binaryClients.add(id);
+        }
         clients.put(id, channel);
         clientIdsByUser.put(userId, id);
         userIdsByClient.put(id, userId);
-        requestFullSync();
+        pendingJoins.add(id);
+        queueSessionChange(userId);
     }
 
     public void remove(String id) {
-        clients.remove(id);
-        UUID userId = userIdsByClient.remove(id);
-        if (userId != null) {
-            clientIdsByUser.remove(userId, id);
+        synchronized (membershipLock) {
+            clients.remove(id);
+            UUID userId = userIdsByClient.remove(id);
+            if (userId != null) {
+                clientIdsByUser.remove(userId, id);
+                queueSessionChange(userId);
+            }
+            pendingJoins.remove(id);
+            peerStates.remove(id);
+            String world = worldsByClient.remove(id);
+            VoiceChatWorldRoom worldRoom = world != null ? worldRooms.get(world) : null;
+            if (worldRoom != null) {
+                worldRoom.remove(id);
+            }
+        }
+        binaryClients.remove(id);
+        Integer peerIndex = peerIndices.remove(id);
+        if (peerIndex != null) {
+            releasePeerIndex(peerIndex);
+        }
+    }
+
+    // Small numeric ids so binary frames do not need to repeat the 32 char client id.
+    private int allocatePeerIndex() {
+        synchronized (usedPeerIndices) {
+            int index = usedPeerIndices.nextClearBit(0);
+            if (index > VoiceChatBinaryProtocol.MAX_PEER_INDEX) {
+                throw new IllegalStateException("No free voice chat peer index");
+            }
+            usedPeerIndices.set(index);
+            return index;
+        }
+    }
+
+    private void releasePeerIndex(int index) {
+        synchronized (usedPeerIndices) {
+            usedPeerIndices.clear(index);
+        }
+    }
+
+    // Called every tick with the client's current world, moves it between world rooms when it changes.
+    // Null once the client has been removed, the world thread may still hold its old client id.
+    public VoiceChatWorldRoom joinWorld(String id, String world) {
+        // Common case first, avoids the lock, the put and the capturing lambda on every tick.
+        VoiceChatWorldRoom worldRoom = worldRooms.get(world);
+        if (worldRoom != null && world.equals(worldsByClient.get(id))) {
+            return worldRoom;
+        }
+        if (worldRoom == null) {
+            worldRoom = worldRooms.computeIfAbsent(world, name -> new VoiceChatWorldRoom(name, config));
+        }
+        // Shared with remove so a client can not be added back after it has been cleaned up.
+        synchronized (membershipLock) {
+            if (!clients.containsKey(id)) {
+                return null;
+            }
+            String previous = worldsByClient.put(id, world);
+            if (world.equals(previous)) {
+                return worldRoom;
+            }
+            if (previous != null) {
+                VoiceChatWorldRoom previousRoom = worldRooms.get(previous);
+                if (previousRoom != null) {
+                    previousRoom.leave(this, id);
+                }
+                // Starts over in the new world the same way a fresh join does.
+                pendingJoins.add(id);
+            }
+            worldRoom.add(id);
+        }
+        return worldRoom;
+    }
+
+    // For the world thread to check after writing a client's spatial state, remove may have run
+    // since joinWorld and what was written then has to be dropped again.
+    public boolean isRegistered(String id) {
+        return clients.containsKey(id);
+    }
+
+    public VoiceChatWorldRoom getWorldRoom(String world) {
+        return worldRooms.get(world);
+    }
+
+    public Collection<VoiceChatWorldRoom> getWorldRooms() {
+        return worldRooms.values();
+    }
+
+    // Whether the two clients were paired up by their world's topology.
+    public boolean isConnected(String id, String peerId) {
+        String world = worldsByClient.get(id);
+        VoiceChatWorldRoom worldRoom = world != null ? worldRooms.get(world) : null;
+        return worldRoom != null && worldRoom.getTopology().isConnected(id, peerId);
+    }
+
+    public UUID getUserId(String id) {
+        if (id == null) {
+            return null;
+        }
+        return userIdsByClient.get(id);
+    }
+
+    public int getPeerIndex(String id) {
+        if (id == null) {
+            return -1;
+        }
+        Integer index = peerIndices.get(id);
+        return index != null ? index : -1;
+    }
+
+    // Connected but with more queued than the high water mark allows.
+    public boolean isBacklogged(String id) {
+        Channel channel = clients.get(id);
+        return channel != null && channel.isActive() && !channel.isWritable();
+    }
+
+    public boolean isBinaryClient(String id) {
+        return binaryClients.contains(id);
+    }
+
+    // Null once nothing is queued for the world. Compare with isUserConnected for the current
+    // state, a user can be queued more than once.
+    public UUID pollSessionChange(String world) {
+        Queue<UUID> queue = sessionChanges.get(world);
+        return queue != null ? queue.poll() : null;
+    }
+
+    // Called from the world thread as player entities are added to and removed from its store.
+    public void playerEnteredWorld(UUID userId, String world) {
+        playerWorlds.put(userId, world);
+    }
+
+    public void playerLeftWorld(UUID userId, String world) {
+        playerWorlds.remove(userId, world);
+    }
+
+    // The session is updated before the world is read, and the world thread records the world
+    // before checking the session, so a player arriving somewhere at the same time is either
+    // queued there or sees the new state when it arrives. Players not in a world yet are tagged
+    // when they arrive.
+    private void queueSessionChange(UUID userId) {
+        String world = playerWorlds.get(userId);
+        if (world != null) {
+            sessionChanges.computeIfAbsent(world, ignored -> new ConcurrentLinkedQueue<>()).add(userId);
         }
     }
 
@@ -64,11 +280,30 @@ public class VoiceChatRoom {
     }
 
     public boolean sendTo(String id, JsonObject message) {
+        return sendTo(id, message, Priority.SIGNALING);
+    }
+
+    public boolean sendTo(String id, JsonObject message, Priority priority) {
         Channel channel = clients.get(id);
         if (channel == null || !channel.isActive()) {
             return false;
         }
-        channel.writeAndFlush(new TextWebSocketFrame(message.toString()));
+        sendTo(channel, message, priority);
+        return true;
+    }
+
+    // For replies on a channel that may not be registered, such as errors before hello.
+    public void sendTo(Channel channel, JsonObject message, Priority priority) {
+        write(channel, new TextWebSocketFrame(encode(channel.alloc(), message)), priority);
+    }
+
+    public boolean sendFrameTo(String id, WebSocketFrame frame, Priority priority) {
+        Channel channel = clients.get(id);
+        if (channel == null || !channel.isActive()) {
+            frame.release();
+            return false;
+        }
+        write(channel, frame, priority);
         return true;
     }
 
@@ -91,31 +326,109 @@ public class VoiceChatRoom {
     }
 
     public void broadcast(JsonObject message, String excludeId) {
-        String payload = message.toString();
-        for (Map.Entry<String, Channel> entry : clients.entrySet()) {
-            if (excludeId != null && excludeId.equals(entry.getKey())) {
-                continue;
-            }
-            Channel channel = entry.getValue();
-            if (channel.isActive()) {
-                channel.writeAndFlush(new TextWebSocketFrame(payload));
+        // Encoded once, each channel gets its own view of the same bytes.
+        ByteBuf payload = encode(ByteBufAllocator.DEFAULT, message);
+        try {
+            for (Map.Entry<String, Channel> entry : clients.entrySet()) {
+                if (excludeId != null && excludeId.equals(entry.getKey())) {
+                    continue;
+                }
+                Channel channel = entry.getValue();
+                if (channel.isActive()) {
+                    write(channel, new TextWebSocketFrame(payload.retainedDuplicate()), Priority.PRESENCE);
+                }
             }
+        } finally {
+            payload.release();
         }
     }
 
+    // Sends made on this thread until flushBatch are only written, then each channel touched
+    // is flushed once. Saves a flush (and a TLS record) per message when a tick sends a lot.
+    public void beginBatch() {
+        if (batchedChannels.get() == null) {
+            batchedChannels.set(new LinkedHashSet<>());
+        }
+    }
+
+    public void flushBatch() {
+        Set<Channel> channels = batchedChannels.get();
+        if (channels == null) {
+            return;
+        }
+        batchedChannels.remove();
+        for (Channel channel : channels) {
+            channel.flush();
+            flushes.increment();
+        }
+    }
+
+    private void write(Channel channel, WebSocketFrame frame, Priority priority) {
+        framesWritten.increment();
+        Set<Channel> batch = batchedChannels.get();
+        boolean flush = batch == null;
+        if (flush) {
+            flushes.increment();
+        } else {
+            batch.add(channel);
+        }
+        VoiceChatOutboundScheduler scheduler = channel.pipeline().get(VoiceChatOutboundScheduler.class);
+        if (scheduler != null) {
+            scheduler.send(frame, priority, flush);
+        } else if (flush) {
+            channel.writeAndFlush(frame);
+        } else {
+            channel.write(frame);
+        }
+    }
+
+    public void reportWriteStats() {
+        long frames = framesWritten.sumThenReset();
+        long flushCount = flushes.sumThenReset();
+        VoiceChat.LOGGER.atFine().log(
+            "Voice chat wrote %s frames with %s flushes (%.2f frames per flush)",
+            frames, flushCount, flushCount > 0 ? (double) frames / flushCount : 0.0
+        );
+        compression.report();
+    }
+
+    public VoiceChatCompression getCompression() {
+        return compression;
+    }
+
+    private ByteBuf encode(ByteBufAllocator allocator, JsonObject message) {
+        return ByteBufUtil.writeUtf8(allocator, message.toString());
+    }
+
     public void broadcastState(String type, String id, String field, JsonElement value) {
         JsonObject message = new JsonObject();
         message.addProperty("type", type);
         message.addProperty("id", id);
         message.add(field, value);
+        Map<String, JsonObject> states = peerStates.computeIfAbsent(id, ignored -> new LinkedHashMap<>());
+        synchronized (states) {
+            states.remove(type);
+            states.put(type, message);
+        }
         broadcast(message, id);
     }
 
-    public void requestFullSync() {
-        fullSyncRequested.set(true);
+    // Replayed to late joiners so they see who is already muted or using push to talk.
+    public List<JsonObject> peerStatesSnapshot() {
+        List<JsonObject> snapshot = new ArrayList<>();
+        for (Map<String, JsonObject> states : peerStates.values()) {
+            synchronized (states) {
+                snapshot.addAll(states.values());
+            }
+        }
+        return snapshot;
+    }
+
+    public boolean hasPendingJoin(String id) {
+        return pendingJoins.contains(id);
     }
 
-    public boolean consumeFullSyncRequested() {
-        return fullSyncRequested.getAndSet(false);
+    public boolean consumePendingJoin(String id) {
+        return pendingJoins.remove(id);
     }
 }
@@ -7,18 +7,20 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.nio.NioIoHandle;
-import io.netty.channel.nio.NioIoHandler;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import java.net.BindException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class VoiceChatServer {
@@ -28,19 +30,36 @@ public class VoiceChatServer {
     private final VoiceChatRoom room;
     private final boolean devForwardingEnabled;
     private final SslContext sslContext;
+    private final VoiceChatTls tls;
+    private final WriteBufferWaterMark waterMark;
+    private final VoiceChatAssetCache assets;
+    private final VoiceChatTransport transport;
+    private final int acceptorThreads;
+    private final int workerThreads;
     private final AtomicBoolean running = new AtomicBoolean(false);
     private final Gson gson = new Gson();
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private Channel channel;
+    // One per acceptor, all listening on the same port.
+    private final List<Channel> channels = new CopyOnWriteArrayList<>();
 
-    public VoiceChatServer(int port, String hostname, VoiceChatTokenStore tokens, VoiceChatRoom room, boolean devForwardingEnabled) {
+    public VoiceChatServer(int port, String hostname, VoiceChatTokenStore tokens, VoiceChatRoom room, boolean devForwardingEnabled, WriteBufferWaterMark waterMark, String assetDirectory,
+                           VoiceChatTransport transport, int acceptorThreads, int workerThreads, VoiceChatTls tls) {
         this.port = port;
+        this.waterMark = waterMark;
+        this.transport = transport;
+        this.acceptorThreads = acceptorThreads;
+        this.workerThreads = workerThreads;
         this.tokens = tokens;
         this.room = room;
         this.devForwardingEnabled = devForwardingEnabled;
-        this.sslContext = buildSslContext(hostname);
+        this.tls = tls;
+        this.sslContext = buildSslContext(hostname, tls);
+        this.assets = VoiceChatAssetCache.load();
+        if (assetDirectory != null && !assetDirectory.isBlank()) {
+            this.assets.extractTo(Path.of(assetDirectory));
+        }
     }
 
     public void start() {
@@ -54,49 +73,67 @@ public class VoiceChatServer {
 
     public void stop() {
         running.set(false);
-        if (channel != null) {
-            channel.close();
-        }
+        closeChannels();
         if (bossGroup != null) {
             bossGroup.shutdownGracefully();
         }
         if (workerGroup != null) {
             workerGroup.shutdownGracefully();
         }
+        tls.shutdown();
     }
 
     private void startServer() {
-        bossGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
-        workerGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+        int acceptors = Math.max(1, acceptorThreads);
+        if (acceptors > 1 && !transport.supportsReusePort()) {
+            VoiceChat.LOGGER.atWarning().log("AcceptorThreads needs a native transport, using a single acceptor with %s.", transport.getKind());
+            acceptors = 1;
+        }
+        IoHandlerFactory ioHandlerFactory = transport.ioHandlerFactory();
+        // Each acceptor's socket is registered on its own boss thread.
+        bossGroup = new MultiThreadIoEventLoopGroup(acceptors, new DefaultThreadFactory("voicechat-boss", true), ioHandlerFactory);
+        workerGroup = new MultiThreadIoEventLoopGroup(Math.max(0, workerThreads), new DefaultThreadFactory("voicechat-worker", true), ioHandlerFactory);
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
+            if (acceptors > 1) {
+                bootstrap.option(UnixChannelOption.SO_REUSEPORT, true);
+            }
             bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
                             if (sslContext != null) {
                                 ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
                             }
+                            // Flushes made while reading are merged into one at read complete, sitting
+                            // above the SslHandler so they also end up in fewer TLS records.
+                            ch.pipeline().addLast(new FlushConsolidationHandler());
                             ch.pipeline().addLast(new HttpServerCodec());
                             ch.pipeline().addLast(new HttpObjectAggregator(65536));
                             ch.pipeline().addLast(new ChunkedWriteHandler());
-                            ch.pipeline().addLast(new VoiceChatHttpHandler(devForwardingEnabled));
+                            ch.pipeline().addLast(new VoiceChatHttpHandler(devForwardingEnabled, assets));
+                            room.getCompression().addHandlers(ch.pipeline());
                             ch.pipeline().addLast(new WebSocketServerProtocolHandler("/voice/ws", null, true));
+                            ch.pipeline().addLast(new VoiceChatOutboundScheduler());
                             ch.pipeline().addLast(new VoiceChatWebSocketHandler(room, tokens, gson));
                         }
                     })
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, waterMark);
 
             int attempts = 0;
             while (running.get() && attempts < 5) {
                 attempts++;
                 try {
-                    channel = bootstrap.bind(port).syncUninterruptibly().channel();
-                    VoiceChat.LOGGER.atInfo().log("Server listening on port %s", port);
-                    channel.closeFuture().syncUninterruptibly();
+                    for (int i = 0; i < acceptors; i++) {
+                        channels.add(bootstrap.bind(port).syncUninterruptibly().channel());
+                    }
+                    VoiceChat.LOGGER.atInfo().log("Server listening on port %s (%s, %s acceptors)", port, transport.getKind(), acceptors);
+                    channels.get(0).closeFuture().syncUninterruptibly();
                     break;
                 } catch (Exception e) {
+                    closeChannels();
                     if (isBindException(e)) {
                         VoiceChat.LOGGER.atWarning().withCause(e).log("Voice chat bind failed on port %s (attempt %s/5), retrying in 1s.", port, attempts);
                         try {
@@ -117,6 +154,13 @@ public class VoiceChatServer {
         }
     }
 
+    private void closeChannels() {
+        for (Channel bound : channels) {
+            bound.close();
+        }
+        channels.clear();
+    }
+
     private boolean isBindException(Throwable error) {
         Throwable current = error;
         while (current != null) {
@@ -128,15 +172,14 @@ public class VoiceChatServer {
         return false;
     }
 
-    private SslContext buildSslContext(String hostname) {
+    private SslContext buildSslContext(String hostname, VoiceChatTls tls) {
         if (devForwardingEnabled) {
             return null;
         }
         try {
-            SelfSignedCertificate certificate = new SelfSignedCertificate(hostname);
-            return SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey()).build();
+            return tls.buildContext(hostname);
         } catch (Exception e) {
-            VoiceChat.LOGGER.atSevere().withCause(e).log("Failed to generate TLS certificate for %s.", hostname);
+            VoiceChat.LOGGER.atSevere().withCause(e).log("Failed to set up TLS for %s.", hostname);
             return null;
         }
     }
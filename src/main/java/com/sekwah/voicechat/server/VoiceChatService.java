@@ -3,6 +3,7 @@ package com.sekwah.voicechat.server;
 import com.hypixel.hytale.server.core.util.Config;
 import com.sekwah.voicechat.config.VoiceChatConfig;
 import com.sekwah.voicechat.config.VoiceChatSessionsConfig;
+import io.netty.channel.WriteBufferWaterMark;
 
 import java.time.Duration;
 import java.util.UUID;
@@ -11,7 +12,7 @@ public class VoiceChatService {
 
     private final Config<VoiceChatConfig> config;
     private final VoiceChatTokenStore tokens;
-    private final VoiceChatRoom room = new VoiceChatRoom();
+    private final VoiceChatRoom room;
     private final Config<VoiceChatSessionsConfig> sessionsConfig;
 
     private VoiceChatServer server;
@@ -21,6 +22,7 @@ public class VoiceChatService {
         this.config = config;
         this.sessionsConfig = sessionsConfig;
         this.tokens = new VoiceChatTokenStore(this.sessionsConfig);
+        this.room = new VoiceChatRoom(config);
     }
 
     public void start() {
@@ -28,7 +30,14 @@ public class VoiceChatService {
         int port = current.getVoiceChatPort();
         publicUrl = resolvePublicUrl(current, port);
         String hostname = resolveHostname(publicUrl);
-        server = new VoiceChatServer(port, hostname, tokens, room, current.isVoiceChatDevForwardingEnabled());
+        int lowWaterMark = Math.max(1, current.getWriteBufferLowWaterMark());
+        int highWaterMark = Math.max(lowWaterMark, current.getWriteBufferHighWaterMark());
+        WriteBufferWaterMark waterMark = new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+        server = new VoiceChatServer(port, hostname, tokens, room, current.isVoiceChatDevForwardingEnabled(), waterMark,
+                current.getAssetDirectory(), VoiceChatTransport.select(current.getNetworkTransport()),
+                current.getAcceptorThreads(), current.getWorkerThreads(),
+                new VoiceChatTls(current.getTlsCertificateFile(), current.getTlsPrivateKeyFile(),
+                        current.getTlsDirectory(), current.getTlsSessionTimeoutSeconds()));
         server.start();
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "voicechat-shutdown"));
     }
@@ -37,6 +46,8 @@ public class VoiceChatService {
         if (server != null) {
             server.stop();
         }
+        room.shutdown();
+        tokens.shutdown();
     }
 
     public String createSessionUrl(UUID userId) {
@@ -0,0 +1,206 @@
+package com.sekwah.voicechat.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// Pulls the fields the handler acts on out of a client message without building a Gson tree, so
+// the SDP and ICE payloads of signaling messages are only scanned rather than copied. One per
+// connection, it is only used from that connection's event loop.
+final class VoiceChatSignalReader {
+
+    private final DecodingReader source = new DecodingReader();
+
+    // Returns null if the frame is not a single well formed JSON object.
+    Header read(ByteBuf content) {
+        source.reset(content);
+        try (JsonReader reader = new JsonReader(source)) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            reader.beginObject();
+            String type = null;
+            String to = null;
+            String token = null;
+            boolean binary = false;
+            JsonElement muted = null;
+            JsonElement active = null;
+            boolean forwardable = true;
+            boolean complete = true;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                JsonToken next = reader.peek();
+                switch (name) {
+                    case "type", "to", "token" -> {
+                        if (next != JsonToken.STRING) {
+                            complete = false;
+                            reader.skipValue();
+                        } else if (name.equals("type")) {
+                            type = reader.nextString();
+                        } else if (name.equals("to")) {
+                            to = reader.nextString();
+                        } else {
+                            token = reader.nextString();
+                        }
+                        forwardable &= !name.equals("token");
+                    }
+                    case "binary", "muted", "active" -> {
+                        forwardable = false;
+                        if (next != JsonToken.BOOLEAN) {
+                            complete = false;
+                            reader.skipValue();
+                        } else if (name.equals("binary")) {
+                            binary = reader.nextBoolean();
+                        } else if (name.equals("muted")) {
+                            muted = new JsonPrimitive(reader.nextBoolean());
+                        } else {
+                            active = new JsonPrimitive(reader.nextBoolean());
+                        }
+                    }
+                    case "sdp", "candidate" -> reader.skipValue();
+                    default -> {
+                        // Anything else, a "from" in particular, would be passed on as is.
+                        forwardable = false;
+                        complete = false;
+                        reader.skipValue();
+                    }
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+            return new Header(type, to, token, binary, muted, active, forwardable, complete);
+        } catch (IOException | IllegalStateException e) {
+            return null;
+        } finally {
+            source.reset(null);
+        }
+    }
+
+    // The same fields taken from a parsed tree, for messages read couldn't fully handle.
+    static Header fromTree(JsonObject payload) {
+        return new Header(
+                getString(payload, "type"),
+                getString(payload, "to"),
+                getString(payload, "token"),
+                getBoolean(payload, "binary"),
+                payload.get("muted"),
+                payload.get("active"),
+                false,
+                true
+        );
+    }
+
+    private static String getString(JsonObject payload, String key) {
+        JsonElement element = payload.get(key);
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        return element.getAsString();
+    }
+
+    private static boolean getBoolean(JsonObject payload, String key) {
+        JsonElement element = payload.get(key);
+        if (element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isBoolean()) {
+            return false;
+        }
+        return element.getAsBoolean();
+    }
+
+    // Offset of the opening brace, the body after it can be forwarded untouched.
+    static int objectStart(ByteBuf content) {
+        return content.indexOf(content.readerIndex(), content.writerIndex(), (byte) '{');
+    }
+
+    // forwardable is only set when the object holds nothing but type, to, sdp and candidate.
+    // complete is cleared when a field was unknown or had an unexpected type, those messages go
+    // through the tree so they are treated the same as before.
+    record Header(String type, String to, String token, boolean binary, JsonElement muted, JsonElement active,
+                  boolean forwardable, boolean complete) {
+    }
+
+    // Decodes the frame's bytes with the JDK decoder, which rejects overlong encodings and lone
+    // surrogates. The decoder and the view over JsonReader's buffer are kept for the connection,
+    // the JsonReader itself cannot be reset so it is still one per frame.
+    private static final class DecodingReader extends Reader {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // Holds the second half of a surrogate pair when only one char was asked for.
+        private final CharBuffer spill = CharBuffer.allocate(2);
+        private ByteBuffer input;
+        private boolean flushed;
+        private char[] target;
+        private CharBuffer targetView;
+
+        void reset(ByteBuf buffer) {
+            decoder.reset();
+            input = buffer != null ? buffer.nioBuffer() : null;
+            flushed = false;
+            spill.clear().flip();
+            // Not kept past the frame so the connection does not pin a finished reader's buffer.
+            target = null;
+            targetView = null;
+        }
+
+        @Override
+        public int read(char[] out, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (spill.hasRemaining()) {
+                out[offset] = spill.get();
+                return 1;
+            }
+            if (out != target) {
+                target = out;
+                targetView = CharBuffer.wrap(out);
+            }
+            targetView.limit(offset + length).position(offset);
+            decode(targetView);
+            int count = targetView.position() - offset;
+            if (count == 0 && !flushed) {
+                // A surrogate pair does not fit in a single char.
+                spill.clear();
+                decode(spill);
+                spill.flip();
+                if (spill.hasRemaining()) {
+                    out[offset] = spill.get();
+                    return 1;
+                }
+            }
+            return count == 0 && flushed ? -1 : count;
+        }
+
+        private void decode(CharBuffer out) throws IOException {
+            if (flushed) {
+                return;
+            }
+            CoderResult result = decoder.decode(input, out, true);
+            if (result.isUnderflow()) {
+                result = decoder.flush(out);
+                flushed = result.isUnderflow();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.sekwah.voicechat.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Collects a tick's worth of spatial changes so each recipient gets a single
+// snapshot frame instead of one frame per changed peer.
+public class VoiceChatSnapshotBatch {
+
+    private final Map<String, PeerUpdate> peerUpdates = new LinkedHashMap<>();
+    private final Map<String, Recipient> recipients = new HashMap<>();
+
+    public void addPosition(String id, double x, double y, double z, double velocityX, double velocityY, double velocityZ) {
+        PeerUpdate update = peerUpdate(id);
+        update.hasPosition = true;
+        update.x = x;
+        update.y = y;
+        update.z = z;
+        update.velocityX = velocityX;
+        update.velocityY = velocityY;
+        update.velocityZ = velocityZ;
+    }
+
+    public void addRotation(String id, float pitch, float yaw, float roll) {
+        PeerUpdate update = peerUpdate(id);
+        update.hasRotation = true;
+        update.pitch = pitch;
+        update.yaw = yaw;
+        update.roll = roll;
+    }
+
+    // A batch the fan out has not picked up yet is filled again by the next tick, so a later
+    // enter or exit for the same pair cancels the earlier one. Exits are applied before enters
+    // on both ends, keeping both would leave an enter then exit still in range.
+    public void addEnter(String recipientId, String peerId) {
+        Recipient recipient = recipient(recipientId);
+        recipient.exited.remove(peerId);
+        recipient.entered.add(peerId);
+    }
+
+    public void addExit(String recipientId, String peerId) {
+        Recipient recipient = recipient(recipientId);
+        recipient.entered.remove(peerId);
+        recipient.exited.add(peerId);
+    }
+
+    public void flush(VoiceChatRoom room, VoiceChatWorldRoom worldRoom) {
+        VoiceChatInterestManager interest = worldRoom.getInterest();
+        VoiceChatLevelOfDetail levelOfDetail = worldRoom.getLevelOfDetail();
+        long now = System.nanoTime();
+        for (PeerUpdate update : peerUpdates.values()) {
+            // Clients always get their own state straight away as it drives the listener.
+            recipient(update.id).peers.put(update.id, update);
+            levelOfDetail.publish(update, now);
+        }
+
+        for (Map.Entry<String, Recipient> target : recipients.entrySet()) {
+            String recipientId = target.getKey();
+            Recipient recipient = target.getValue();
+            for (String peerId : recipient.exited) {
+                levelOfDetail.exit(recipientId, peerId);
+            }
+            // Newly visible peers need a starting position even if they did not move this tick.
+            for (String peerId : recipient.entered) {
+                PeerUpdate entry = levelOfDetail.enter(recipientId, peerId, now);
+                if (entry == null || !entry.hasPosition) {
+                    PeerUpdate indexed = positionEntry(interest, peerId);
+                    entry = indexed != null ? merge(indexed, entry) : entry;
+                }
+                if (entry != null) {
+                    recipient.peers.put(peerId, entry);
+                }
+            }
+        }
+        levelOfDetail.collectDue(interest, now, (recipientId, entry) ->
+                recipient(recipientId).peers.putIfAbsent(entry.id, entry));
+        // Clients that were backed up last tick may be able to take their held snapshot now.
+        for (String recipientId : worldRoom.getHeldSnapshotIds()) {
+            recipient(recipientId);
+        }
+
+        for (Map.Entry<String, Recipient> target : recipients.entrySet()) {
+            String recipientId = target.getKey();
+            Recipient recipient = target.getValue();
+            Recipient held = worldRoom.takeHeldSnapshot(recipientId);
+            if (held != null) {
+                held.conflate(recipient);
+                recipient = held;
+            }
+            // Rather than queueing stale frames behind a slow connection, keep only the latest
+            // state per peer until the channel drains below its low water mark.
+            if (room.isBacklogged(recipientId)) {
+                worldRoom.holdSnapshot(recipientId, recipient);
+                continue;
+            }
+            if (recipient.isEmpty()) {
+                continue;
+            }
+            if (room.isBinaryClient(recipientId)) {
+                sendBinary(room, recipientId, recipient);
+            } else {
+                sendJson(room, recipientId, recipient);
+            }
+        }
+        peerUpdates.clear();
+        recipients.clear();
+    }
+
+    private void sendJson(VoiceChatRoom room, String recipientId, Recipient recipient) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "snapshot");
+        JsonArray peers = new JsonArray();
+        for (PeerUpdate update : recipient.peers.values()) {
+            peers.add(update.toJson());
+        }
+        message.add("peers", peers);
+        if (!recipient.entered.isEmpty()) {
+            message.add("entered", toJsonArray(recipient.entered));
+        }
+        if (!recipient.exited.isEmpty()) {
+            message.add("exited", toJsonArray(recipient.exited));
+        }
+        room.sendTo(recipientId, message, VoiceChatOutboundScheduler.Priority.SPATIAL);
+    }
+
+    private void sendBinary(VoiceChatRoom room, String recipientId, Recipient recipient) {
+        int entries = 0;
+        int positions = 0;
+        int rotations = 0;
+        for (PeerUpdate update : recipient.peers.values()) {
+            entries++;
+            positions += update.hasPosition ? 1 : 0;
+            rotations += update.hasRotation ? 1 : 0;
+        }
+        for (String peerId : recipient.entered) {
+            entries += recipient.peers.containsKey(peerId) ? 0 : 1;
+        }
+        entries += recipient.exited.size();
+
+        ByteBuf buffer = ByteBufAllocator.DEFAULT.buffer(VoiceChatBinaryProtocol.snapshotSize(entries, positions, rotations));
+        // Count is written after the fact as peers without an index are skipped.
+        int countIndex = buffer.writerIndex() + 1;
+        VoiceChatBinaryProtocol.writeSnapshotHeader(buffer, 0);
+        int written = 0;
+        for (PeerUpdate update : recipient.peers.values()) {
+            int peerIndex = room.getPeerIndex(update.id);
+            if (peerIndex < 0) {
+                continue;
+            }
+            int flags = (update.hasPosition ? VoiceChatBinaryProtocol.FLAG_POSITION : 0)
+                    | (update.hasRotation ? VoiceChatBinaryProtocol.FLAG_ROTATION : 0)
+                    | (recipient.entered.contains(update.id) ? VoiceChatBinaryProtocol.FLAG_ENTERED : 0);
+            VoiceChatBinaryProtocol.writeEntry(buffer, peerIndex, flags);
+            if (update.hasPosition) {
+                VoiceChatBinaryProtocol.writePosition(buffer, update.x, update.y, update.z);
+                VoiceChatBinaryProtocol.writeVelocity(buffer, update.velocityX, update.velocityY, update.velocityZ);
+            }
+            if (update.hasRotation) {
+                VoiceChatBinaryProtocol.writeRotation(buffer, update.yaw, update.pitch);
+            }
+            written++;
+        }
+        for (String peerId : recipient.entered) {
+            int peerIndex = room.getPeerIndex(peerId);
+            if (peerIndex >= 0 && !recipient.peers.containsKey(peerId)) {
+                VoiceChatBinaryProtocol.writeEntry(buffer, peerIndex, VoiceChatBinaryProtocol.FLAG_ENTERED);
+                written++;
+            }
+        }
+        for (String peerId : recipient.exited) {
+            int peerIndex = room.getPeerIndex(peerId);
+            if (peerIndex >= 0) {
+                VoiceChatBinaryProtocol.writeEntry(buffer, peerIndex, VoiceChatBinaryProtocol.FLAG_EXITED);
+                written++;
+            }
+        }
+        buffer.setShort(countIndex, written);
+        room.sendFrameTo(recipientId, new BinaryWebSocketFrame(buffer), VoiceChatOutboundScheduler.Priority.SPATIAL);
+    }
+
+    private PeerUpdate positionEntry(VoiceChatInterestManager interest, String peerId) {
+        VoiceChatSpatialIndex.Entry position = interest.getPosition(peerId);
+        if (position == null) {
+            return null;
+        }
+        PeerUpdate entry = new PeerUpdate(peerId);
+        entry.hasPosition = true;
+        entry.x = position.x();
+        entry.y = position.y();
+        entry.z = position.z();
+        return entry;
+    }
+
+    private PeerUpdate merge(PeerUpdate position, PeerUpdate rotation) {
+        if (rotation != null && rotation.hasRotation) {
+            position.hasRotation = true;
+            position.pitch = rotation.pitch;
+            position.yaw = rotation.yaw;
+            position.roll = rotation.roll;
+        }
+        return position;
+    }
+
+    private JsonArray toJsonArray(Set<String> ids) {
+        JsonArray array = new JsonArray();
+        ids.forEach(array::add);
+        return array;
+    }
+
+    private PeerUpdate peerUpdate(String id) {
+        return peerUpdates.computeIfAbsent(id, PeerUpdate::new);
+    }
+
+    // Null when nothing was recorded for the client since the last flush.
+    Recipient pending(String id) {
+        return recipients.get(id);
+    }
+
+    private Recipient recipient(String id) {
+        return recipients.computeIfAbsent(id, ignored -> new Recipient());
+    }
+
+    static final class PeerUpdate {
+        final String id;
+        boolean hasPosition;
+        double x;
+        double y;
+        double z;
+        double velocityX;
+        double velocityY;
+        double velocityZ;
+        boolean hasRotation;
+        float pitch;
+        float yaw;
+        float roll;
+        // Shared by every JSON recipient of this peer.
+        private JsonObject json;
+
+        PeerUpdate(String id) {
+            this.id = id;
+        }
+
+        private JsonObject toJson() {
+            if (json != null) {
+                return json;
+            }
+            json = new JsonObject();
+            json.addProperty("id", id);
+            if (hasPosition) {
+                JsonObject position = new JsonObject();
+                position.addProperty("x", x);
+                position.addProperty("y", y);
+                position.addProperty("z", z);
+                json.add("position", position);
+                JsonObject velocity = new JsonObject();
+                velocity.addProperty("x", velocityX);
+                velocity.addProperty("y", velocityY);
+                velocity.addProperty("z", velocityZ);
+                json.add("velocity", velocity);
+            }
+            if (hasRotation) {
+                JsonObject rotation = new JsonObject();
+                rotation.addProperty("x", pitch);
+                rotation.addProperty("y", yaw);
+                rotation.addProperty("z", roll);
+                json.add("rotation", rotation);
+            }
+            return json;
+        }
+    }
+
+    static final class Recipient {
+        private final Map<String, PeerUpdate> peers = new LinkedHashMap<>();
+        private final Set<String> entered = new LinkedHashSet<>();
+        private final Set<String> exited = new LinkedHashSet<>();
+
+        Set<String> entered() {
+            return entered;
+        }
+
+        Set<String> exited() {
+            return exited;
+        }
+
+        private boolean isEmpty() {
+            return peers.isEmpty() && entered.isEmpty() && exited.isEmpty();
+        }
+
+        // Folds a newer snapshot into this one so the result leaves the client in the same state
+        // as receiving both in order.
+        private void conflate(Recipient newer) {
+            for (String peerId : newer.exited) {
+                entered.remove(peerId);
+                peers.remove(peerId);
+                exited.add(peerId);
+            }
+            for (String peerId : newer.entered) {
+                exited.remove(peerId);
+                entered.add(peerId);
+            }
+            for (PeerUpdate update : newer.peers.values()) {
+                peers.merge(update.id, update, Recipient::latest);
+            }
+        }
+
+        private static PeerUpdate latest(PeerUpdate older, PeerUpdate newer) {
+            boolean keepPosition = older.hasPosition && !newer.hasPosition;
+            boolean keepRotation = older.hasRotation && !newer.hasRotation;
+            if (!keepPosition && !keepRotation) {
+                return newer;
+            }
+            // Updates can be shared between recipients so a merged copy is made.
+            PeerUpdate positionSource = keepPosition ? older : newer;
+            PeerUpdate rotationSource = keepRotation ? older : newer;
+            PeerUpdate merged = new PeerUpdate(newer.id);
+            merged.hasPosition = positionSource.hasPosition;
+            merged.x = positionSource.x;
+            merged.y = positionSource.y;
+            merged.z = positionSource.z;
+            merged.velocityX = positionSource.velocityX;
+            merged.velocityY = positionSource.velocityY;
+            merged.velocityZ = positionSource.velocityZ;
+            merged.hasRotation = rotationSource.hasRotation;
+            merged.pitch = rotationSource.pitch;
+            merged.yaw = rotationSource.yaw;
+            merged.roll = rotationSource.roll;
+            return merged;
+        }
+    }
+}
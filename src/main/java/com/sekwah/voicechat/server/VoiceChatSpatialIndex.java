@@ -0,0 +1,189 @@
+package com.sekwah.voicechat.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Uniform grid per world so range queries only touch the cells around a listener
+// rather than every connected client.
+public class VoiceChatSpatialIndex {
+
+    private final double cellSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<CellKey, Set<String>> cells = new ConcurrentHashMap<>();
+    // Reused for every cell collectWithin looks up, which only runs on the world thread.
+    private final CellKey probe = new CellKey(null, 0, 0, 0);
+
+    public VoiceChatSpatialIndex(double cellSize) {
+        this.cellSize = Math.max(1.0, cellSize);
+    }
+
+    // Entries are updated in place and the cell is only looked up again when it changes, so a
+    // player moving around within a cell allocates nothing.
+    public void update(String id, String world, double x, double y, double z) {
+        int cellX = cellCoord(x);
+        int cellY = cellCoord(y);
+        int cellZ = cellCoord(z);
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            entry = new Entry(world, x, y, z, new CellKey(world, cellX, cellY, cellZ));
+            entries.put(id, entry);
+        } else {
+            CellKey previousCell = entry.cell;
+            if (previousCell.matches(world, cellX, cellY, cellZ)) {
+                entry.set(world, x, y, z);
+                return;
+            }
+            removeFromCell(previousCell, id);
+            entry.cell = new CellKey(world, cellX, cellY, cellZ);
+            entry.set(world, x, y, z);
+        }
+        addToCell(entry.cell, id);
+        // Removed while moving, the entry is gone so nothing else would take it out of the new cell.
+        if (entries.get(id) != entry) {
+            removeFromCell(entry.cell, id);
+        }
+    }
+
+    public void remove(String id) {
+        Entry previous = entries.remove(id);
+        if (previous != null) {
+            removeFromCell(previous.cell, id);
+        }
+    }
+
+    public Entry get(String id) {
+        return entries.get(id);
+    }
+
+    // World thread only, see probe.
+    public void collectWithin(String world, double x, double y, double z, double radius, Collection<String> out) {
+        int reach = (int) Math.ceil(radius / cellSize);
+        int centerX = cellCoord(x);
+        int centerY = cellCoord(y);
+        int centerZ = cellCoord(z);
+        double radiusSquared = radius * radius;
+        for (int cx = centerX - reach; cx <= centerX + reach; cx++) {
+            for (int cy = centerY - reach; cy <= centerY + reach; cy++) {
+                for (int cz = centerZ - reach; cz <= centerZ + reach; cz++) {
+                    probe.set(world, cx, cy, cz);
+                    Set<String> members = cells.get(probe);
+                    if (members == null) {
+                        continue;
+                    }
+                    for (String id : members) {
+                        Entry entry = entries.get(id);
+                        if (entry != null && entry.world().equals(world)
+                                && entry.distanceSquared(x, y, z) <= radiusSquared) {
+                            out.add(id);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void addToCell(CellKey cell, String id) {
+        cells.compute(cell, (key, members) -> {
+            Set<String> updated = members != null ? members : ConcurrentHashMap.newKeySet();
+            updated.add(id);
+            return updated;
+        });
+    }
+
+    private void removeFromCell(CellKey cell, String id) {
+        cells.computeIfPresent(cell, (key, members) -> {
+            members.remove(id);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    private int cellCoord(double value) {
+        return (int) Math.floor(value / cellSize);
+    }
+
+    // Written by the world thread and read by the fan out thread. A reader can see the
+    // coordinates of two consecutive updates mixed, which is harmless for audio.
+    public static final class Entry {
+        private volatile String world;
+        private volatile double x;
+        private volatile double y;
+        private volatile double z;
+        private volatile CellKey cell;
+
+        private Entry(String world, double x, double y, double z, CellKey cell) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.cell = cell;
+        }
+
+        private void set(String world, double x, double y, double z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public String world() {
+            return world;
+        }
+
+        public double x() {
+            return x;
+        }
+
+        public double y() {
+            return y;
+        }
+
+        public double z() {
+            return z;
+        }
+
+        public double distanceSquared(double otherX, double otherY, double otherZ) {
+            double dx = x - otherX;
+            double dy = y - otherY;
+            double dz = z - otherZ;
+            return dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    // Keys stored in cells are never changed, only the probe is set again.
+    private static final class CellKey {
+        private String world;
+        private int x;
+        private int y;
+        private int z;
+
+        private CellKey(String world, int x, int y, int z) {
+            set(world, x, y, z);
+        }
+
+        private void set(String world, int x, int y, int z) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        private boolean matches(String world, int x, int y, int z) {
+            return this.x == x && this.y == y && this.z == z && this.world.equals(world);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CellKey key && matches(key.world, key.x, key.y, key.z);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = world.hashCode();
+            hash = 31 * hash + x;
+            hash = 31 * hash + y;
+            return 31 * hash + z;
+        }
+    }
+}
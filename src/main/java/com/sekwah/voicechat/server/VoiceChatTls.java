@@ -0,0 +1,211 @@
+package com.sekwah.voicechat.server;
+
+import com.sekwah.voicechat.VoiceChat;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslServerSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// TLS for the voice server. Certificates supplied by the operator are used as is, otherwise a
+// self signed ECDSA certificate is generated once per hostname and kept, so browsers only have
+// to be told to trust it once rather than after every restart.
+public class VoiceChatTls {
+
+    private static final long VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(365);
+    // Regenerated a while before it runs out so it never expires mid session.
+    private static final long RENEW_BEFORE_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final long SESSION_CACHE_SIZE = 4096;
+    private static final long TICKET_KEY_ROTATION_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    private static final int MAX_TICKET_KEYS = 26;
+
+    private final String certificateFile;
+    private final String privateKeyFile;
+    private final Path directory;
+    private final long sessionTimeoutSeconds;
+    private final SecureRandom random = new SecureRandom();
+    // Newest first, that is the key OpenSSL encrypts new tickets with.
+    private final Deque<OpenSslSessionTicketKey> ticketKeys = new ArrayDeque<>();
+    private ScheduledExecutorService ticketRotation;
+
+    public VoiceChatTls(String certificateFile, String privateKeyFile, String directory, long sessionTimeoutSeconds) {
+        this.certificateFile = certificateFile;
+        this.privateKeyFile = privateKeyFile;
+        this.directory = Path.of(directory == null || directory.isBlank() ? "voicechat-tls" : directory);
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+    }
+
+    public SslContext buildContext(String hostname) throws Exception {
+        SslContextBuilder builder;
+        if (!isBlank(certificateFile) && !isBlank(privateKeyFile)) {
+            builder = SslContextBuilder.forServer(Path.of(certificateFile).toFile(), Path.of(privateKeyFile).toFile());
+            VoiceChat.LOGGER.atInfo().log("Using TLS certificate %s.", certificateFile);
+        } else {
+            Path[] files = loadOrGenerate(hostname);
+            builder = SslContextBuilder.forServer(files[0].toFile(), files[1].toFile());
+        }
+        SslProvider provider = isOpenSslAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        // The cache and timeout decide how long a reconnecting browser can resume instead of doing
+        // a full handshake. The JDK provider also issues TLS 1.3 tickets on its own.
+        SslContext context = builder
+                .sslProvider(provider)
+                .sessionCacheSize(SESSION_CACHE_SIZE)
+                .sessionTimeout(Math.max(0, sessionTimeoutSeconds))
+                .build();
+        // Netty's OpenSSL context turns tickets off unless keys are set, so they are made here.
+        if (context.sessionContext() instanceof OpenSslServerSessionContext sessionContext) {
+            startTicketKeyRotation(sessionContext);
+        }
+        VoiceChat.LOGGER.atInfo().log("Voice chat TLS using the %s provider.", provider);
+        return context;
+    }
+
+    public synchronized void shutdown() {
+        if (ticketRotation != null) {
+            ticketRotation.shutdownNow();
+            ticketRotation = null;
+        }
+    }
+
+    // Keys are rotated so a leaked key only exposes recent sessions. Older keys are kept to
+    // decrypt tickets for as long as the session timeout allows, new tickets use the newest.
+    private synchronized void startTicketKeyRotation(OpenSslServerSessionContext sessionContext) {
+        shutdown();
+        ticketKeys.clear();
+        long rotationSeconds = TICKET_KEY_ROTATION_SECONDS;
+        int kept = (int) Math.min(MAX_TICKET_KEYS, Math.max(1, sessionTimeoutSeconds) / rotationSeconds + 2);
+        rotateTicketKeys(sessionContext, kept);
+        ticketRotation = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "voicechat-tls-tickets");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticketRotation.scheduleAtFixedRate(() -> rotateTicketKeys(sessionContext, kept),
+                rotationSeconds, rotationSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void rotateTicketKeys(OpenSslServerSessionContext sessionContext, int kept) {
+        ticketKeys.addFirst(new OpenSslSessionTicketKey(randomBytes(OpenSslSessionTicketKey.NAME_SIZE),
+                randomBytes(OpenSslSessionTicketKey.HMAC_KEY_SIZE), randomBytes(OpenSslSessionTicketKey.AES_KEY_SIZE)));
+        while (ticketKeys.size() > kept) {
+            ticketKeys.removeLast();
+        }
+        sessionContext.setTicketKeys(ticketKeys.toArray(new OpenSslSessionTicketKey[0]));
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Certificate and key files for the hostname, reusing the stored pair while it is valid.
+    private Path[] loadOrGenerate(String hostname) throws Exception {
+        String name = hostname.replaceAll("[^A-Za-z0-9.-]", "_");
+        Path certificate = directory.resolve(name + ".crt");
+        Path privateKey = directory.resolve(name + ".key");
+        if (Files.isRegularFile(certificate) && Files.isRegularFile(privateKey) && isStillValid(certificate)) {
+            VoiceChat.LOGGER.atInfo().log("Reusing TLS certificate %s.", certificate.toAbsolutePath());
+            return new Path[]{certificate, privateKey};
+        }
+
+        Files.createDirectories(directory);
+        generate(hostname, certificate, privateKey);
+        VoiceChat.LOGGER.atInfo().log("Generated TLS certificate %s for %s.", certificate.toAbsolutePath(), hostname);
+        return new Path[]{certificate, privateKey};
+    }
+
+    private boolean isStillValid(Path certificate) {
+        try (InputStream stream = Files.newInputStream(certificate)) {
+            X509Certificate parsed = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(stream);
+            return parsed.getNotAfter().getTime() - System.currentTimeMillis() > RENEW_BEFORE_MILLIS;
+        } catch (Exception e) {
+            VoiceChat.LOGGER.atWarning().withCause(e).log("Stored TLS certificate %s is unreadable, generating a new one.", certificate);
+            return false;
+        }
+    }
+
+    // Netty deprecated this in favour of netty-pkitesting, which needs Bouncy Castle at runtime.
+    // That is too much to ship for one self signed certificate, and this still works on the JDK alone.
+    @SuppressWarnings("deprecation")
+    private void generate(String hostname, Path certificate, Path privateKey) throws Exception {
+        long now = System.currentTimeMillis();
+        SelfSignedCertificate generated = SelfSignedCertificate.builder()
+                .fqdn(hostname)
+                .algorithm("EC")
+                .bits(256)
+                .notBefore(new Date(now - TimeUnit.DAYS.toMillis(1)))
+                .notAfter(new Date(now + VALIDITY_MILLIS))
+                .build();
+        try {
+            // Written from memory straight into files that are owner only from the start, rather
+            // than copying Netty's temporary key and restricting it afterwards.
+            writeAtomically(privateKey, toPem("PRIVATE KEY", generated.key().getEncoded()));
+            writeAtomically(certificate, toPem("CERTIFICATE", generated.cert().getEncoded()));
+        } finally {
+            generated.delete();
+        }
+    }
+
+    private static byte[] toPem(String label, byte[] der) {
+        String body = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der);
+        return ("-----BEGIN " + label + "-----\n" + body + "\n-----END " + label + "-----\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Writes to a temporary file next to the target and moves it into place, so a crash never
+    // leaves a half written file behind. Created rw------- from the start where supported.
+    private void writeAtomically(Path target, byte[] content) throws IOException {
+        Path temporary;
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            temporary = Files.createTempFile(directory, target.getFileName().toString(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } else {
+            temporary = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        }
+        try {
+            Files.write(temporary, content);
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static boolean isOpenSslAvailable() {
+        try {
+            return OpenSsl.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}
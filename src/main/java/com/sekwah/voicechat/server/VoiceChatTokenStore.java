@@ -5,19 +5,40 @@ import com.sekwah.voicechat.config.VoiceChatSessionsConfig;
 
 import java.security.SecureRandom;
 import java.time.Duration;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+// One time tokens handed out by the /voice command. Expiry is tracked in a queue ordered by
+// expiry time and swept in the background, so creating or consuming a token never scans the
+// outstanding ones. Tokens are 128 bit values, only turned into hex for the URL.
 public class VoiceChatTokenStore {
 
-    private final Map<String, TokenEntry> tokensByValue = new ConcurrentHashMap<>();
-    private final Map<UUID, Map<String, Long>> tokensByUser = new ConcurrentHashMap<>();
+    private static final long SWEEP_INTERVAL_SECONDS = 30;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Map<UUID, TokenEntry> tokensByValue = new ConcurrentHashMap<>();
+    // Also keeps consumed tokens until they expire, see consumeTokenForUser.
+    private final PriorityBlockingQueue<TokenEntry> expiryQueue =
+            new PriorityBlockingQueue<>(64, Comparator.comparingLong(entry -> entry.expiresAt));
     private final SecureRandom random = new SecureRandom();
     private final Config<VoiceChatSessionsConfig> sessionConfig;
+    private final ScheduledExecutorService sweeper;
 
     public VoiceChatTokenStore(Config<VoiceChatSessionsConfig> sessionConfig) {
         this.sessionConfig = sessionConfig;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "voicechat-token-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(this::purgeExpired, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     public void registerUser(UUID userId) {
@@ -30,23 +51,23 @@ public class VoiceChatTokenStore {
         if (userId == null) {
             throw new IllegalArgumentException("userId must be provided");
         }
-        purgeExpired();
-        String token = new UUID(random.nextLong(), random.nextLong()).toString().replace("-", "");
-        long expiresAt = System.currentTimeMillis() + ttl.toMillis();
-        tokensByValue.put(token, new TokenEntry(userId, expiresAt));
-        tokensByUser
-            .computeIfAbsent(userId, ignored -> new ConcurrentHashMap<>())
-            .put(token, expiresAt);
-        return token;
+        UUID key = new UUID(random.nextLong(), random.nextLong());
+        TokenEntry entry = new TokenEntry(key, userId, System.currentTimeMillis() + ttl.toMillis());
+        tokensByValue.put(key, entry);
+        expiryQueue.add(entry);
+        return HEX.toHexDigits(key.getMostSignificantBits()) + HEX.toHexDigits(key.getLeastSignificantBits());
     }
 
     public UUID consumeTokenForUser(String token) {
         if (token == null || token.isBlank()) {
             return null;
         }
-        TokenEntry entry = tokensByValue.remove(token);
+        UUID key = parseKey(token);
+        TokenEntry entry = key != null ? tokensByValue.remove(key) : null;
         if (entry != null) {
-            removeTokenForUser(entry.userId, token);
+            // Its expiry queue entry is left for the sweep, removing it here would mean a linear scan.
+            // So the queue holds every token issued in the last TTL plus one sweep interval,
+            // consumed or not, and its size is bounded by that window times the issue rate.
             if (entry.expiresAt < System.currentTimeMillis()) {
                 return null;
             }
@@ -60,33 +81,46 @@ public class VoiceChatTokenStore {
         return this.sessionConfig.get().getUserUUIDFromToken(token);
     }
 
-    private void purgeExpired() {
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    // Only ever looks at tokens that have already expired, stopping at the first live one.
+    void purgeExpired() {
         long now = System.currentTimeMillis();
-        tokensByValue.entrySet().removeIf(entry -> {
-            if (entry.getValue().expiresAt < now) {
-                removeTokenForUser(entry.getValue().userId, entry.getKey());
-                return true;
+        TokenEntry head;
+        while ((head = expiryQueue.peek()) != null && head.expiresAt < now) {
+            TokenEntry expired = expiryQueue.poll();
+            if (expired != null) {
+                tokensByValue.remove(expired.key, expired);
             }
-            return false;
-        });
+        }
+    }
+
+    // Outstanding tokens plus consumed ones the sweep has not reached yet.
+    int pendingExpiries() {
+        return expiryQueue.size();
     }
 
-    private void removeTokenForUser(UUID userId, String token) {
-        Map<String, Long> userTokens = tokensByUser.get(userId);
-        if (userTokens == null) {
-            return;
+    // Null for anything that is not a token this store could have handed out.
+    private static UUID parseKey(String token) {
+        if (token.length() != 32) {
+            return null;
         }
-        userTokens.remove(token);
-        if (userTokens.isEmpty()) {
-            tokensByUser.remove(userId, userTokens);
+        try {
+            return new UUID(HexFormat.fromHexDigitsToLong(token, 0, 16), HexFormat.fromHexDigitsToLong(token, 16, 32));
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
     private static final class TokenEntry {
+        private final UUID key;
         private final UUID userId;
         private final long expiresAt;
 
-        private TokenEntry(UUID userId, long expiresAt) {
+        private TokenEntry(UUID key, UUID userId, long expiresAt) {
+            this.key = key;
             this.userId = userId;
             this.expiresAt = expiresAt;
         }
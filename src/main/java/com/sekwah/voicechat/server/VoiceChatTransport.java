@@ -0,0 +1,106 @@
+package com.sekwah.voicechat.server;
+
+import com.sekwah.voicechat.VoiceChat;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+
+import java.util.Locale;
+
+// Picks the socket transport for the voice server. The native ones are only touched once they
+// are known to work, the game server may ship without their classes or libraries.
+public final class VoiceChatTransport {
+
+    public enum Kind {
+        IO_URING,
+        EPOLL,
+        NIO
+    }
+
+    private final Kind kind;
+
+    private VoiceChatTransport(Kind kind) {
+        this.kind = kind;
+    }
+
+    // "auto" tries io_uring, then epoll, then NIO. Naming one that is not available falls back
+    // the same way.
+    public static VoiceChatTransport select(String preference) {
+        String requested = preference == null ? "auto" : preference.trim().toLowerCase(Locale.ROOT);
+        switch (requested) {
+            case "nio":
+                return new VoiceChatTransport(Kind.NIO);
+            case "io_uring":
+                if (isIoUringAvailable()) {
+                    return new VoiceChatTransport(Kind.IO_URING);
+                }
+                VoiceChat.LOGGER.atWarning().log("io_uring is not available here, picking a transport automatically.");
+                break;
+            case "epoll":
+                if (isEpollAvailable()) {
+                    return new VoiceChatTransport(Kind.EPOLL);
+                }
+                VoiceChat.LOGGER.atWarning().log("epoll is not available here, picking a transport automatically.");
+                break;
+            case "auto":
+                break;
+            default:
+                VoiceChat.LOGGER.atWarning().log("Unknown NetworkTransport %s, picking one automatically.", preference);
+        }
+        if (isIoUringAvailable()) {
+            return new VoiceChatTransport(Kind.IO_URING);
+        }
+        if (isEpollAvailable()) {
+            return new VoiceChatTransport(Kind.EPOLL);
+        }
+        return new VoiceChatTransport(Kind.NIO);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public IoHandlerFactory ioHandlerFactory() {
+        return switch (kind) {
+            case IO_URING -> IoUringIoHandler.newFactory();
+            case EPOLL -> EpollIoHandler.newFactory();
+            case NIO -> NioIoHandler.newFactory();
+        };
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        return switch (kind) {
+            case IO_URING -> IoUringServerSocketChannel.class;
+            case EPOLL -> EpollServerSocketChannel.class;
+            case NIO -> NioServerSocketChannel.class;
+        };
+    }
+
+    // Several listening sockets on one port, with the kernel spreading new connections over them.
+    public boolean supportsReusePort() {
+        return kind != Kind.NIO;
+    }
+
+    private static boolean isIoUringAvailable() {
+        try {
+            return IoUring.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.sekwah.voicechat.server;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -10,12 +11,16 @@ import com.hypixel.hytale.server.core.universe.PlayerRef;
 import com.hypixel.hytale.server.core.universe.Universe;
 import com.sekwah.voicechat.VoiceChat;
 import com.sekwah.voicechat.util.VoiceChatSoundUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.AttributeKey;
 
 import java.awt.*;
+import java.util.Collection;
 import java.util.UUID;
 
 public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
@@ -27,6 +32,7 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
     private final VoiceChatRoom room;
     private final VoiceChatTokenStore tokens;
     private final Gson gson;
+    private final VoiceChatSignalReader signalReader = new VoiceChatSignalReader();
 
     public VoiceChatWebSocketHandler(VoiceChatRoom room, VoiceChatTokenStore tokens, Gson gson) {
         this.room = room;
@@ -36,15 +42,25 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame msg) {
-        JsonObject payload;
-        try {
-            payload = JsonParser.parseString(msg.text()).getAsJsonObject();
-        } catch (JsonSyntaxException | IllegalStateException e) {
+        VoiceChatSignalReader.Header header = signalReader.read(msg.content());
+        if (header == null) {
             sendError(ctx, "Invalid message format.");
             return;
         }
+        // Signaling is the bulk of the traffic and is relayed as is, hello, mute and ptt are read
+        // straight from the header. Only messages it could not fully take apart get a tree.
+        JsonObject payload = null;
+        if (!header.complete() || (isSignal(header.type()) && !header.forwardable())) {
+            try {
+                payload = JsonParser.parseString(msg.text()).getAsJsonObject();
+            } catch (JsonSyntaxException | IllegalStateException e) {
+                sendError(ctx, "Invalid message format.");
+                return;
+            }
+            header = VoiceChatSignalReader.fromTree(payload);
+        }
 
-        String type = getString(payload, "type");
+        String type = header.type();
         if (type == null) {
             sendError(ctx, "Missing message type.");
             return;
@@ -56,19 +72,23 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
                 sendError(ctx, "Authentication required.");
                 return;
             }
-            handleHello(ctx, payload);
+            handleHello(ctx, header);
             return;
         }
 
         switch (type) {
             case "offer", "answer", "ice":
-                forwardSignal(ctx, payload, type);
+                if (payload != null) {
+                    forwardSignal(ctx, payload, header);
+                } else {
+                    relaySignal(ctx, msg, header);
+                }
                 break;
             case "mute":
-                broadcastState(ctx, payload, "mute", "muted");
+                broadcastState(ctx, header.muted(), "mute", "muted");
                 break;
             case "ptt":
-                broadcastState(ctx, payload, "ptt", "active");
+                broadcastState(ctx, header.active(), "ptt", "active");
                 break;
             default:
                 sendError(ctx, "Unknown message type: " + type);
@@ -106,8 +126,8 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
         }
     }
 
-    private void handleHello(ChannelHandlerContext ctx, JsonObject payload) {
-        String token = getString(payload, "token");
+    private void handleHello(ChannelHandlerContext ctx, VoiceChatSignalReader.Header header) {
+        String token = header.token();
         UUID userId = tokens.consumeTokenForUser(token);
         if (userId == null) {
             sendError(ctx, "Invalid or expired token. Please re-run /voice chat command.");
@@ -130,8 +150,14 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
         ctx.channel().attr(CLIENT_ID).set(id);
         ctx.channel().attr(AUTHENTICATED).set(true);
         ctx.channel().attr(CLIENT_USER_ID).set(userId);
-        JsonElement existingPeers = gson.toJsonTree(room.peerIdsSnapshot());
-        room.register(userId, id, ctx.channel());
+        // Clients opt in to binary spatial frames, older clients keep receiving JSON snapshots.
+        boolean binary = header.binary();
+        room.register(userId, id, ctx.channel(), binary);
+        // Taken after registering, anyone who joins from here on is already broadcasting
+        // their peer-join to us, anyone before is in the list.
+        Collection<String> existingPeerIds = room.peerIdsSnapshot();
+        existingPeerIds.remove(id);
+        JsonElement existingPeers = gson.toJsonTree(existingPeerIds);
 
         JsonObject welcome = new JsonObject();
         welcome.addProperty("type", "welcome");
@@ -142,26 +168,74 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
         configPayload.addProperty("fullVolumeRange", config.getFullVolumeRange());
         configPayload.addProperty("fallOffRange", config.getFallOffRange());
         configPayload.addProperty("additionalPeerConnectionRange", config.getAdditionalPeerConnectionRange());
+        configPayload.addProperty("deadReckoningMaxSeconds", config.getDeadReckoningMaxSeconds());
         welcome.add("config", configPayload);
         welcome.add("peers", existingPeers);
-        ctx.channel().writeAndFlush(new TextWebSocketFrame(welcome.toString()));
+        welcome.addProperty("binary", binary);
+        welcome.addProperty("index", room.getPeerIndex(id));
+        JsonObject peerIndices = new JsonObject();
+        for (String peerId : existingPeerIds) {
+            int peerIndex = room.getPeerIndex(peerId);
+            if (peerIndex >= 0) {
+                peerIndices.addProperty(peerId, peerIndex);
+            }
+        }
+        welcome.add("peerIndices", peerIndices);
+        JsonArray states = new JsonArray();
+        room.peerStatesSnapshot().forEach(states::add);
+        welcome.add("states", states);
+        room.sendTo(ctx.channel(), welcome, VoiceChatOutboundScheduler.Priority.SIGNALING);
 
         JsonObject join = new JsonObject();
         join.addProperty("type", "peer-join");
         join.addProperty("id", id);
+        join.addProperty("index", room.getPeerIndex(id));
         room.broadcast(join, id);
 
         playerRef.sendMessage(Message.translation("commands.success.voicechat.connected").color(Color.GREEN));
         VoiceChatSoundUtil.playUiSound(playerRef, "SFX_Capture_Crate_spawn_Succeed");
     }
 
-    private void forwardSignal(ChannelHandlerContext ctx, JsonObject payload, String type) {
-        String to = getString(payload, "to");
+    private boolean isSignal(String type) {
+        return "offer".equals(type) || "answer".equals(type) || "ice".equals(type);
+    }
+
+    // Forwards the sender's own bytes with "from" put in front, so the SDP or candidate is
+    // never decoded or re-encoded. The "to" and "type" fields go along unchanged.
+    private void relaySignal(ChannelHandlerContext ctx, TextWebSocketFrame msg, VoiceChatSignalReader.Header header) {
+        String to = header.to();
+        String from = ctx.channel().attr(CLIENT_ID).get();
+        if (to == null || from == null) {
+            sendError(ctx, "Missing target.");
+            return;
+        }
+        if (header.type().equals("offer") && !room.isConnected(from, to)) {
+            return;
+        }
+        ByteBuf content = msg.content();
+        int start = VoiceChatSignalReader.objectStart(content);
+        CompositeByteBuf forward = ctx.alloc().compositeBuffer(2);
+        // Client ids are plain hex so need no escaping.
+        forward.addComponent(true, ByteBufUtil.writeUtf8(ctx.alloc(), "{\"from\":\"" + from + "\","));
+        forward.addComponent(true, content.retainedSlice(start + 1, content.writerIndex() - start - 1));
+        if (!room.sendFrameTo(to, new TextWebSocketFrame(forward), VoiceChatOutboundScheduler.Priority.SIGNALING)) {
+            sendError(ctx, "Target not available.");
+        }
+    }
+
+    private void forwardSignal(ChannelHandlerContext ctx, JsonObject payload, VoiceChatSignalReader.Header header) {
+        String type = header.type();
+        String to = header.to();
         String from = ctx.channel().attr(CLIENT_ID).get();
         if (to == null || from == null) {
             sendError(ctx, "Missing target.");
             return;
         }
+        // Connections are only opened between peers the topology paired up, late offers
+        // for a pair that has since been disconnected are dropped.
+        if (type.equals("offer") && !room.isConnected(from, to)) {
+            return;
+        }
         JsonObject forward = new JsonObject();
         forward.addProperty("type", type);
         forward.addProperty("from", from);
@@ -176,8 +250,7 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
         }
     }
 
-    private void broadcastState(ChannelHandlerContext ctx, JsonObject payload, String type, String field) {
-        JsonElement value = payload.get(field);
+    private void broadcastState(ChannelHandlerContext ctx, JsonElement value, String type, String field) {
         if (value == null) {
             sendError(ctx, "Missing state: " + field);
             return;
@@ -194,14 +267,6 @@ public class VoiceChatWebSocketHandler extends SimpleChannelInboundHandler<TextW
         JsonObject error = new JsonObject();
         error.addProperty("type", "error");
         error.addProperty("message", message);
-        ctx.channel().writeAndFlush(new TextWebSocketFrame(error.toString()));
-    }
-
-    private String getString(JsonObject payload, String key) {
-        JsonElement element = payload.get(key);
-        if (element == null || element.isJsonNull()) {
-            return null;
-        }
-        return element.getAsString();
+        room.sendTo(ctx.channel(), error, VoiceChatOutboundScheduler.Priority.SIGNALING);
     }
 }
@@ -0,0 +1,171 @@
+package com.sekwah.voicechat.server;
+
+import com.hypixel.hytale.server.core.util.Config;
+import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Spatial state for the voice clients in a single world. Worlds share nothing here so each
+// world's tick only ever touches its own room and they can run in parallel.
+public class VoiceChatWorldRoom {
+
+    private final String name;
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    // Members the position system found something to send or re-check for this tick. Only
+    // touched on the world thread, so remove leaves it alone and the broadcast skips departed ids.
+    private final VoiceChatDirtySet dirty = new VoiceChatDirtySet();
+    private final VoiceChatInterestManager interest;
+    private final VoiceChatLevelOfDetail levelOfDetail;
+    private final VoiceChatPeerTopology topology;
+    // Range exits for clients that moved to another world, sent with this world's next snapshot.
+    private final Queue<PendingExit> pendingExits = new ConcurrentLinkedQueue<>();
+    // Conflated spatial state for clients whose channel was not writable at the last flush.
+    private final Map<String, VoiceChatSnapshotBatch.Recipient> heldSnapshots = new ConcurrentHashMap<>();
+    // Double buffered hand off between the world tick, which fills a batch, and the fan out
+    // thread, which turns it into frames. Neither side ever waits on the other.
+    private final AtomicReference<VoiceChatSnapshotBatch> pendingBatch = new AtomicReference<>();
+    private final AtomicReference<VoiceChatSnapshotBatch> spareBatch = new AtomicReference<>(new VoiceChatSnapshotBatch());
+    private final AtomicBoolean fanOutRunning = new AtomicBoolean();
+
+    public VoiceChatWorldRoom(String name, Config<VoiceChatConfig> config) {
+        this.name = name;
+        this.interest = new VoiceChatInterestManager(new VoiceChatSpatialIndex(config.get().getInterestRange()));
+        this.levelOfDetail = new VoiceChatLevelOfDetail(config);
+        this.topology = new VoiceChatPeerTopology(config);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<String> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    public VoiceChatInterestManager getInterest() {
+        return interest;
+    }
+
+    public VoiceChatLevelOfDetail getLevelOfDetail() {
+        return levelOfDetail;
+    }
+
+    public VoiceChatPeerTopology getTopology() {
+        return topology;
+    }
+
+    void add(String id) {
+        members.add(id);
+    }
+
+    // World thread only, the peer index keeps a client from being marked twice in a tick.
+    public void markDirty(String id, int peerIndex) {
+        dirty.mark(id, peerIndex);
+    }
+
+    // Hands each dirty member to the consumer once and starts the next tick empty.
+    public void drainDirty(Consumer<String> consumer) {
+        dirty.drain(consumer);
+    }
+
+    // The client is still connected, so both sides need to hear that they are out of range.
+    void leave(VoiceChatRoom room, String id) {
+        for (String peerId : interest.getVisiblePeers(id)) {
+            pendingExits.add(new PendingExit(peerId, id));
+            pendingExits.add(new PendingExit(id, peerId));
+        }
+        topology.leave(room, id);
+        remove(id);
+    }
+
+    public void remove(String id) {
+        members.remove(id);
+        interest.remove(id);
+        levelOfDetail.remove(id);
+        topology.remove(id);
+        heldSnapshots.remove(id);
+    }
+
+    Set<String> getHeldSnapshotIds() {
+        return heldSnapshots.keySet();
+    }
+
+    VoiceChatSnapshotBatch.Recipient takeHeldSnapshot(String id) {
+        return heldSnapshots.remove(id);
+    }
+
+    void holdSnapshot(String id, VoiceChatSnapshotBatch.Recipient snapshot) {
+        heldSnapshots.put(id, snapshot);
+    }
+
+    // Returns the batch for this tick to fill. Anything the fan out has not picked up yet is
+    // still in it, newer updates for the same peer just overwrite the older ones.
+    public VoiceChatSnapshotBatch beginTick() {
+        VoiceChatSnapshotBatch batch = pendingBatch.getAndSet(null);
+        if (batch == null) {
+            batch = spareBatch.getAndSet(null);
+        }
+        return batch != null ? batch : new VoiceChatSnapshotBatch();
+    }
+
+    public void publish(VoiceChatRoom room, VoiceChatSnapshotBatch batch) {
+        pendingBatch.set(batch);
+        scheduleFanOut(room);
+    }
+
+    private void scheduleFanOut(VoiceChatRoom room) {
+        if (!fanOutRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            room.getFanOutExecutor().execute(() -> fanOut(room));
+        } catch (RejectedExecutionException e) {
+            // Shutting down, leave it marked as running so nothing else gets scheduled.
+        }
+    }
+
+    // Runs at most once at a time per world so the level of detail, topology and held
+    // snapshots are only ever touched from one thread.
+    private void fanOut(VoiceChatRoom room) {
+        try {
+            VoiceChatSnapshotBatch batch = pendingBatch.getAndSet(null);
+            if (batch != null) {
+                room.beginBatch();
+                try {
+                    topology.rebalanceIfRequested(room, this);
+                    batch.flush(room, this);
+                } finally {
+                    room.flushBatch();
+                }
+                spareBatch.set(batch);
+            }
+        } catch (RuntimeException e) {
+            VoiceChat.LOGGER.atSevere().withCause(e).log("Voice chat fan out failed for world %s.", name);
+        } finally {
+            fanOutRunning.set(false);
+            if (pendingBatch.get() != null) {
+                scheduleFanOut(room);
+            }
+        }
+    }
+
+    public void drainPendingExits(VoiceChatSnapshotBatch batch) {
+        PendingExit exit;
+        while ((exit = pendingExits.poll()) != null) {
+            batch.addExit(exit.recipientId(), exit.peerId());
+        }
+    }
+
+    private record PendingExit(String recipientId, String peerId) {
+    }
+}
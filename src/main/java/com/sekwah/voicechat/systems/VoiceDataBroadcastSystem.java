@@ -1,7 +1,5 @@
 package com.sekwah.voicechat.systems;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.hypixel.hytale.component.*;
 import com.hypixel.hytale.component.dependency.Dependency;
 import com.hypixel.hytale.component.dependency.Order;
@@ -10,80 +8,182 @@ import com.hypixel.hytale.component.system.tick.TickingSystem;
 import com.hypixel.hytale.server.core.universe.PlayerRef;
 import com.hypixel.hytale.server.core.universe.Universe;
 import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+import com.sekwah.voicechat.server.VoiceChatInterestManager;
 import com.sekwah.voicechat.server.VoiceChatRoom;
+import com.sekwah.voicechat.server.VoiceChatSnapshotBatch;
+import com.sekwah.voicechat.server.VoiceChatWorldRoom;
 import com.sekwah.voicechat.systems.components.VoiceChatComponent;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 public class VoiceDataBroadcastSystem extends TickingSystem<EntityStore> {
-    private static final Gson GSON = new Gson();
-
     private final ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType;
     private final VoiceChatRoom room;
+    private final VoiceUpdateScheduler scheduler;
+    private final ThreadLocal<BroadcastTick> ticks = ThreadLocal.withInitial(BroadcastTick::new);
 
-    public VoiceDataBroadcastSystem(ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, VoiceChatRoom room) {
+    public VoiceDataBroadcastSystem(ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, VoiceChatRoom room, VoiceUpdateScheduler scheduler) {
         this.voiceChatComponentType = voiceChatComponentType;
         this.room = room;
+        this.scheduler = scheduler;
     }
 
     @Override
     public void tick(float v, int i, @NotNull Store<EntityStore> store) {
-        Universe universe = Universe.get();
-        boolean forceSync = room.consumeFullSyncRequested();
-        for (PlayerRef player : universe.getPlayers()) {
-            Ref<EntityStore> ref = player.getReference();
-            if(ref == null) {
-                continue;
+        VoiceChatConfig config = VoiceChat.CONFIG.get();
+        if (scheduler.reportIfDue(config)) {
+            for (VoiceChatWorldRoom worldRoom : room.getWorldRooms()) {
+                worldRoom.getLevelOfDetail().report(worldRoom.getName());
+            }
+            room.reportWriteStats();
+        }
+        // Each store only handles the clients in its own world.
+        VoiceChatWorldRoom worldRoom = room.getWorldRoom(store.getExternalData().getWorld().getName());
+        if (worldRoom == null) {
+            return;
+        }
+        // The tick only records what changed, building and sending the frames happens on the
+        // fan out thread once the batch is published.
+        VoiceChatSnapshotBatch batch = worldRoom.beginTick();
+        worldRoom.drainPendingExits(batch);
+        BroadcastTick broadcastTick = ticks.get();
+        broadcastTick.begin(store, worldRoom, batch, config);
+        try {
+            // Only the clients the position system marked this tick, an idle world does no per
+            // player work here.
+            worldRoom.drainDirty(broadcastTick);
+        } finally {
+            broadcastTick.end();
+        }
+
+        // Published even when nothing changed this tick so deferred lower tier updates still go out.
+        worldRoom.publish(room, batch);
+    }
+
+    @Nonnull
+    public Set<Dependency<EntityStore>> getDependencies() {
+        return Set.of(
+                new SystemDependency<>(Order.AFTER, VoicePositionSystem.class)
+        );
+    }
+
+    // The per client work of a tick, kept per thread and reused so ticking allocates no
+    // listener or lambda. Worlds tick on their own threads, possibly at the same time.
+    private final class BroadcastTick implements Consumer<String>, VoiceChatInterestManager.RangeListener {
+        private Store<EntityStore> store;
+        private VoiceChatWorldRoom worldRoom;
+        private VoiceChatSnapshotBatch batch;
+        private VoiceChatConfig config;
+        private Universe universe;
+        private double interestRange;
+
+        private void begin(Store<EntityStore> store, VoiceChatWorldRoom worldRoom, VoiceChatSnapshotBatch batch, VoiceChatConfig config) {
+            this.store = store;
+            this.worldRoom = worldRoom;
+            this.batch = batch;
+            this.config = config;
+            this.universe = Universe.get();
+            this.interestRange = config.getInterestRange();
+        }
+
+        // Nothing from the tick is kept alive between ticks.
+        private void end() {
+            store = null;
+            worldRoom = null;
+            batch = null;
+            config = null;
+            universe = null;
+        }
+
+        @Override
+        public void onEnterRange(String id, String peerId) {
+            batch.addEnter(id, peerId);
+            batch.addEnter(peerId, id);
+        }
+
+        @Override
+        public void onExitRange(String id, String peerId) {
+            batch.addExit(id, peerId);
+            batch.addExit(peerId, id);
+        }
+
+        @Override
+        public void accept(String clientId) {
+            UUID userId = room.getUserId(clientId);
+            if (userId == null) {
+                // Disconnected between the position system marking it and this tick.
+                worldRoom.remove(clientId);
+                return;
+            }
+            PlayerRef player = universe.getPlayer(userId);
+            Ref<EntityStore> ref = player != null ? player.getReference() : null;
+            // Mid way through moving to another world's store.
+            if (ref == null || ref.getStore() != store) {
+                return;
             }
-            VoiceChatComponent voiceChatComponent = store.getComponent(ref, this.voiceChatComponentType);
+            VoiceChatComponent voiceChatComponent = store.getComponent(ref, voiceChatComponentType);
             if (voiceChatComponent == null) {
-                continue;
+                return;
             }
-            UUID userId = player.getUuid();
-            if (!room.isUserConnected(userId)) {
-                voiceChatComponent.markPositionDirty = false;
-                voiceChatComponent.markRotationDirty = false;
-                store.putComponent(ref, this.voiceChatComponentType, voiceChatComponent);
-                continue;
+
+            // New clients get their starting state on the first tick after joining. Peers
+            // already in range only hear about them through the range enter events.
+            boolean joining = voiceChatComponent.hasPosition && room.consumePendingJoin(clientId);
+            boolean rangeCheckDue = joining
+                    || (voiceChatComponent.audioEffectUpdateDue && voiceChatComponent.markRangeDirty);
+            if (rangeCheckDue) {
+                worldRoom.getInterest().refresh(clientId, interestRange, this);
+                // Distances changed so the nearest peers may have too.
+                worldRoom.getTopology().requestRebalance();
+                voiceChatComponent.markRangeDirty = false;
+            }
+            if (voiceChatComponent.audioEffectUpdateDue) {
+                scheduler.recordAudioEffectUpdate();
             }
-            String clientId = room.getClientId(userId);
-            if (clientId == null) {
-                continue;
+            if (voiceChatComponent.peerUpdateDue) {
+                scheduler.recordPeerUpdate();
             }
+            boolean peerUpdateDue = joining || voiceChatComponent.peerUpdateDue;
+            voiceChatComponent.audioEffectUpdateDue = false;
+            voiceChatComponent.peerUpdateDue = false;
 
-            boolean shouldSendPosition = (forceSync || voiceChatComponent.markPositionDirty)
-                    && voiceChatComponent.currentPosition != null;
+            // Dirty flags are kept until the client's next scheduled update.
+            boolean shouldSendPosition = peerUpdateDue
+                    && (joining || voiceChatComponent.markPositionDirty)
+                    && voiceChatComponent.hasPosition;
             if (shouldSendPosition) {
-                JsonObject message = new JsonObject();
-                message.addProperty("type", "position");
-                message.addProperty("id", clientId);
-                message.add("position", GSON.toJsonTree(voiceChatComponent.currentPosition));
-                room.broadcast(message, null);
+                boolean deadReckoning = config.isDeadReckoningEnabled();
+                double velocityX = deadReckoning ? voiceChatComponent.velocityX : 0;
+                double velocityY = deadReckoning ? voiceChatComponent.velocityY : 0;
+                double velocityZ = deadReckoning ? voiceChatComponent.velocityZ : 0;
+                batch.addPosition(clientId, voiceChatComponent.positionX, voiceChatComponent.positionY, voiceChatComponent.positionZ,
+                        velocityX, velocityY, velocityZ);
+                voiceChatComponent.hasSentPosition = true;
+                voiceChatComponent.sentX = voiceChatComponent.positionX;
+                voiceChatComponent.sentY = voiceChatComponent.positionY;
+                voiceChatComponent.sentZ = voiceChatComponent.positionZ;
+                voiceChatComponent.sentVelocityX = velocityX;
+                voiceChatComponent.sentVelocityY = velocityY;
+                voiceChatComponent.sentVelocityZ = velocityZ;
+                voiceChatComponent.timeSinceLastSent = 0;
                 voiceChatComponent.markPositionDirty = false;
             }
 
-            boolean shouldSendRotation = voiceChatComponent.markRotationDirty
-                    && voiceChatComponent.currentRotation != null;
+            boolean shouldSendRotation = peerUpdateDue
+                    && (joining || voiceChatComponent.markRotationDirty)
+                    && voiceChatComponent.hasRotation;
             if (shouldSendRotation) {
-                JsonObject message = new JsonObject();
-                message.addProperty("type", "rotation");
-                message.addProperty("id", clientId);
-                message.add("rotation", GSON.toJsonTree(voiceChatComponent.currentRotation));
-                room.broadcast(message, null);
+                batch.addRotation(clientId, voiceChatComponent.pitch, voiceChatComponent.yaw, voiceChatComponent.roll);
                 voiceChatComponent.markRotationDirty = false;
             }
 
-            store.putComponent(ref, this.voiceChatComponentType, voiceChatComponent);
+            store.putComponent(ref, voiceChatComponentType, voiceChatComponent);
         }
     }
-
-    @Nonnull
-    public Set<Dependency<EntityStore>> getDependencies() {
-        return Set.of(
-                new SystemDependency<>(Order.AFTER, VoicePositionSystem.class)
-        );
-    }
 }
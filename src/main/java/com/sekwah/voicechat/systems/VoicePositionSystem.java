@@ -3,8 +3,6 @@ package com.sekwah.voicechat.systems;
 import com.hypixel.hytale.component.*;
 import com.hypixel.hytale.component.query.Query;
 import com.hypixel.hytale.component.system.tick.EntityTickingSystem;
-import com.hypixel.hytale.math.vector.Vector3d;
-import com.hypixel.hytale.math.vector.Vector3f;
 import com.hypixel.hytale.protocol.Direction;
 import com.hypixel.hytale.protocol.ModelTransform;
 import com.hypixel.hytale.server.core.entity.entities.Player;
@@ -12,20 +10,32 @@ import com.hypixel.hytale.server.core.universe.PlayerRef;
 import com.hypixel.hytale.server.core.modules.entity.component.TransformComponent;
 import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
 import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.config.VoiceChatConfig;
 import com.sekwah.voicechat.server.VoiceChatRoom;
+import com.sekwah.voicechat.server.VoiceChatWorldRoom;
 import com.sekwah.voicechat.systems.components.VoiceChatComponent;
+import com.sekwah.voicechat.systems.components.VoiceChatConnectedComponent;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.UUID;
 
 public class VoicePositionSystem extends EntityTickingSystem<EntityStore> {
+    private static final double VELOCITY_SMOOTHING = 0.3;
+    private static final double MIN_SPEED = 0.05;
+    // Anything faster is treated as a teleport rather than movement.
+    private static final double MAX_SPEED = 100.0;
+
     private final ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType;
+    private final ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType;
     private final VoiceChatRoom room;
+    private final VoiceUpdateScheduler scheduler;
 
-    public VoicePositionSystem(ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, VoiceChatRoom room) {
+    public VoicePositionSystem(ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType, VoiceChatRoom room, VoiceUpdateScheduler scheduler) {
         this.voiceChatComponentType = voiceChatComponentType;
+        this.connectedComponentType = connectedComponentType;
         this.room = room;
+        this.scheduler = scheduler;
     }
 
     @Override
@@ -38,40 +48,94 @@ public class VoicePositionSystem extends EntityTickingSystem<EntityStore> {
         VoiceChatComponent voiceChatComponent = commandBuffer.getComponent(ref, this.voiceChatComponentType);
 
         if (!connected) {
+            // Normally untagged by VoiceSessionTagSystem, this covers a session that closed while
+            // the player was between worlds.
+            commandBuffer.tryRemoveComponent(ref, this.connectedComponentType);
             if (voiceChatComponent != null) {
                 commandBuffer.removeComponent(ref, this.voiceChatComponentType);
             }
             return;
         }
 
+        String clientId = room.getClientId(userId);
+        VoiceChatConfig config = VoiceChat.CONFIG.get();
         if (voiceChatComponent == null) {
             voiceChatComponent = new VoiceChatComponent();
+            scheduler.assignPhase(voiceChatComponent, room.getPeerIndex(clientId), config);
         }
+        scheduler.advance(voiceChatComponent, dt, config);
 
         TransformComponent transformComp = commandBuffer.getComponent(ref, TransformComponent.getComponentType());
-        voiceChatComponent.timeSinceLastUpdate += dt;
-
-        if (voiceChatComponent.timeSinceLastUpdate > 0.1) {
-            voiceChatComponent.timeSinceLastUpdate = 0;
-        }
 
         ModelTransform rotation = transformComp.getSentTransform();
-        Vector3d position = new Vector3d(rotation.position.x, rotation.position.y, rotation.position.z);
+        updateVelocity(voiceChatComponent, rotation.position.x, rotation.position.y, rotation.position.z, dt);
+        voiceChatComponent.timeSinceLastSent += dt;
+        double positionStep = config.getPositionPrecision();
+        double x = quantize(rotation.position.x, positionStep);
+        double y = quantize(rotation.position.y, positionStep);
+        double z = quantize(rotation.position.z, positionStep);
         Direction direction = rotation.lookOrientation;
-        Vector3f rotationVec = new Vector3f(direction.pitch, direction.yaw, direction.roll);
+        double angleStep = Math.toRadians(config.getRotationPrecisionDegrees());
+        float pitch = (float) quantize(direction.pitch, angleStep);
+        float yaw = (float) quantize(direction.yaw, angleStep);
 
-        boolean positionChanged = !sameVector(position, voiceChatComponent.currentPosition);
+        boolean positionChanged = !voiceChatComponent.hasPosition
+                || !withinDeadBand(voiceChatComponent, x, y, z, config.getPositionDeadBand());
         if (positionChanged) {
-            voiceChatComponent.currentPosition = position.clone();
+            voiceChatComponent.hasPosition = true;
+            voiceChatComponent.positionX = x;
+            voiceChatComponent.positionY = y;
+            voiceChatComponent.positionZ = z;
+        }
+        if (needsPositionUpdate(voiceChatComponent, positionChanged, config)) {
             voiceChatComponent.markPositionDirty = true;
         }
 
-        boolean rotationChanged = !sameVector(rotationVec, voiceChatComponent.currentRotation);
+        VoiceChatWorldRoom worldRoom = null;
+        if (clientId != null) {
+            String worldName = store.getExternalData().getWorld().getName();
+            worldRoom = room.joinWorld(clientId, worldName);
+            // Also covers a reconnect or world change while the player stood still.
+            if (worldRoom != null && (positionChanged || worldRoom.getInterest().getPosition(clientId) == null)) {
+                worldRoom.getInterest().updatePosition(clientId, worldName,
+                        voiceChatComponent.positionX, voiceChatComponent.positionY, voiceChatComponent.positionZ);
+                voiceChatComponent.markRangeDirty = true;
+            }
+        }
+
+        boolean rotationChanged = !voiceChatComponent.hasRotation || !withinDeadBand(voiceChatComponent, pitch, yaw,
+                Math.toRadians(config.getYawDeadBandDegrees()), Math.toRadians(config.getPitchDeadBandDegrees()));
         if (rotationChanged) {
-            voiceChatComponent.currentRotation = rotationVec.clone();
+            voiceChatComponent.hasRotation = true;
+            voiceChatComponent.pitch = pitch;
+            voiceChatComponent.yaw = yaw;
+            voiceChatComponent.roll = direction.roll;
             voiceChatComponent.markRotationDirty = true;
         }
 
+        // Only clients with something to send or re-check are handed to the broadcast system,
+        // idle clients have their scheduled slot passed here instead.
+        if (worldRoom != null && hasBroadcastWork(voiceChatComponent, clientId)) {
+            worldRoom.markDirty(clientId, room.getPeerIndex(clientId));
+        } else {
+            if (worldRoom != null) {
+                // Nothing changed, so the due slots are served without sending anything.
+                if (voiceChatComponent.audioEffectUpdateDue) {
+                    scheduler.recordAudioEffectUpdate();
+                }
+                if (voiceChatComponent.peerUpdateDue) {
+                    scheduler.recordPeerUpdate();
+                }
+            }
+            voiceChatComponent.audioEffectUpdateDue = false;
+            voiceChatComponent.peerUpdateDue = false;
+        }
+        // The session closed while this tick was writing for it, nothing cleans up after
+        // this id later as a reconnect gets a new one.
+        if (worldRoom != null && !room.isRegistered(clientId)) {
+            worldRoom.remove(clientId);
+        }
+
         commandBuffer.putComponent(ref, this.voiceChatComponentType, voiceChatComponent);
     }
 
@@ -79,34 +143,104 @@ public class VoicePositionSystem extends EntityTickingSystem<EntityStore> {
     public @Nullable Query<EntityStore> getQuery() {
         var playerType = Player.getComponentType();
         var transformType = TransformComponent.getComponentType();
-        if (playerType == null || transformType == null) {
+        if (playerType == null || transformType == null || connectedComponentType == null) {
             VoiceChat.LOGGER.atWarning().log(
-                "VoicePositionSystem disabled: component types missing (player=%s, transform=%s)",
+                "VoicePositionSystem disabled: component types missing (player=%s, transform=%s, connected=%s)",
                 playerType,
-                transformType
+                transformType,
+                connectedComponentType
             );
             return Query.not(Query.any());
         }
-        return Query.and(playerType, transformType);
+        // Only players tagged by VoiceSessionTagSystem, everyone else is skipped by the store.
+        return Query.and(playerType, transformType, connectedComponentType);
     }
 
-    private boolean sameVector(Vector3d left, Vector3d right) {
-        if (left == right) {
+    // Matches the checks in VoiceDataBroadcastSystem.
+    private boolean hasBroadcastWork(VoiceChatComponent component, String clientId) {
+        if (component.hasPosition && room.hasPendingJoin(clientId)) {
             return true;
         }
-        if (left == null || right == null) {
-            return false;
+        if (component.audioEffectUpdateDue && component.markRangeDirty) {
+            return true;
         }
-        return left.equals(right);
+        return component.peerUpdateDue && (component.markPositionDirty || component.markRotationDirty);
     }
 
-    private boolean sameVector(Vector3f left, Vector3f right) {
-        if (left == right) {
-            return true;
+    private void updateVelocity(VoiceChatComponent component, double x, double y, double z, float dt) {
+        if (!component.hasVelocitySample || dt <= 0) {
+            component.sampleX = x;
+            component.sampleY = y;
+            component.sampleZ = z;
+            component.hasVelocitySample = true;
+            return;
         }
-        if (left == null || right == null) {
+        double instantX = (x - component.sampleX) / dt;
+        double instantY = (y - component.sampleY) / dt;
+        double instantZ = (z - component.sampleZ) / dt;
+        component.sampleX = x;
+        component.sampleY = y;
+        component.sampleZ = z;
+        if (instantX * instantX + instantY * instantY + instantZ * instantZ > MAX_SPEED * MAX_SPEED) {
+            component.velocityX = 0;
+            component.velocityY = 0;
+            component.velocityZ = 0;
+            return;
+        }
+        component.velocityX += (instantX - component.velocityX) * VELOCITY_SMOOTHING;
+        component.velocityY += (instantY - component.velocityY) * VELOCITY_SMOOTHING;
+        component.velocityZ += (instantZ - component.velocityZ) * VELOCITY_SMOOTHING;
+        double speedSquared = component.velocityX * component.velocityX
+                + component.velocityY * component.velocityY
+                + component.velocityZ * component.velocityZ;
+        if (speedSquared < MIN_SPEED * MIN_SPEED) {
+            component.velocityX = 0;
+            component.velocityY = 0;
+            component.velocityZ = 0;
+        }
+    }
+
+    // Mirrors the client side extrapolation, only asks for an update once clients would be
+    // further off than the configured error threshold.
+    private boolean needsPositionUpdate(VoiceChatComponent component, boolean positionChanged, VoiceChatConfig config) {
+        if (!component.hasPosition) {
             return false;
         }
-        return left.equals(right);
+        if (!config.isDeadReckoningEnabled() || !component.hasSentPosition) {
+            return positionChanged || !component.hasSentPosition;
+        }
+        double threshold = config.getDeadReckoningErrorThreshold();
+        double elapsed = Math.min(component.timeSinceLastSent, config.getDeadReckoningMaxSeconds());
+        double dx = component.positionX - (component.sentX + component.sentVelocityX * elapsed);
+        double dy = component.positionY - (component.sentY + component.sentVelocityY * elapsed);
+        double dz = component.positionZ - (component.sentZ + component.sentVelocityZ * elapsed);
+        return dx * dx + dy * dy + dz * dz > threshold * threshold;
+    }
+
+    private double quantize(double value, double step) {
+        if (step <= 0) {
+            return value;
+        }
+        return Math.round(value / step) * step;
+    }
+
+    // Compared against the last stored value so slow drift still adds up to an update.
+    private boolean withinDeadBand(VoiceChatComponent stored, double x, double y, double z, double deadBand) {
+        double dx = x - stored.positionX;
+        double dy = y - stored.positionY;
+        double dz = z - stored.positionZ;
+        double distanceSquared = dx * dx + dy * dy + dz * dz;
+        return deadBand > 0 ? distanceSquared < deadBand * deadBand : distanceSquared == 0;
+    }
+
+    // Roll is ignored as it has no effect on the audio.
+    private boolean withinDeadBand(VoiceChatComponent stored, float pitch, float yaw, double yawDeadBand, double pitchDeadBand) {
+        double yawDelta = Math.abs(Math.IEEEremainder(yaw - stored.yaw, Math.PI * 2));
+        double pitchDelta = Math.abs(Math.IEEEremainder(pitch - stored.pitch, Math.PI * 2));
+        return withinAngle(yawDelta, yawDeadBand) && withinAngle(pitchDelta, pitchDeadBand);
+    }
+
+    private boolean withinAngle(double delta, double deadBand) {
+        return deadBand > 0 ? delta < deadBand : delta == 0;
     }
 }
@@ -0,0 +1,66 @@
+package com.sekwah.voicechat.systems;
+
+import com.hypixel.hytale.component.ComponentType;
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.Store;
+import com.hypixel.hytale.component.dependency.Dependency;
+import com.hypixel.hytale.component.dependency.Order;
+import com.hypixel.hytale.component.dependency.SystemDependency;
+import com.hypixel.hytale.component.system.tick.TickingSystem;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import com.hypixel.hytale.server.core.universe.Universe;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import com.sekwah.voicechat.server.VoiceChatRoom;
+import com.sekwah.voicechat.systems.components.VoiceChatComponent;
+import com.sekwah.voicechat.systems.components.VoiceChatConnectedComponent;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+import java.util.Set;
+import java.util.UUID;
+
+// Sessions open and close on the netty threads, the room queues those users for the world they
+// are in and this brings their tag in line on that world's thread. Only users whose session
+// changed are looked at, an idle tick just finds the queue empty. Players changing world are
+// tagged again by VoiceSessionWorldSystem when they arrive.
+public class VoiceSessionTagSystem extends TickingSystem<EntityStore> {
+    private final ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType;
+    private final ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType;
+    private final VoiceChatRoom room;
+
+    public VoiceSessionTagSystem(ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType, ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, VoiceChatRoom room) {
+        this.connectedComponentType = connectedComponentType;
+        this.voiceChatComponentType = voiceChatComponentType;
+        this.room = room;
+    }
+
+    @Override
+    public void tick(float v, int i, @NotNull Store<EntityStore> store) {
+        String world = store.getExternalData().getWorld().getName();
+        UUID userId;
+        while ((userId = room.pollSessionChange(world)) != null) {
+            PlayerRef player = Universe.get().getPlayer(userId);
+            Ref<EntityStore> ref = player != null ? player.getReference() : null;
+            if (ref == null || !ref.isValid() || ref.getStore() != store) {
+                // Already left, the world the player arrives in applies the state then.
+                continue;
+            }
+            // Applies the current state, so a quick close and reopen ends up tagged either way.
+            if (room.isUserConnected(userId)) {
+                if (store.getComponent(ref, this.connectedComponentType) == null) {
+                    store.putComponent(ref, this.connectedComponentType, new VoiceChatConnectedComponent());
+                }
+            } else {
+                store.tryRemoveComponent(ref, this.connectedComponentType);
+                store.tryRemoveComponent(ref, this.voiceChatComponentType);
+            }
+        }
+    }
+
+    @Nonnull
+    public Set<Dependency<EntityStore>> getDependencies() {
+        return Set.of(
+                new SystemDependency<>(Order.BEFORE, VoicePositionSystem.class)
+        );
+    }
+}
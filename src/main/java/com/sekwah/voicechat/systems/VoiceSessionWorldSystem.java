@@ -0,0 +1,63 @@
+package com.sekwah.voicechat.systems;
+
+import com.hypixel.hytale.component.AddReason;
+import com.hypixel.hytale.component.CommandBuffer;
+import com.hypixel.hytale.component.ComponentType;
+import com.hypixel.hytale.component.Ref;
+import com.hypixel.hytale.component.RemoveReason;
+import com.hypixel.hytale.component.Store;
+import com.hypixel.hytale.component.query.Query;
+import com.hypixel.hytale.component.system.RefSystem;
+import com.hypixel.hytale.server.core.universe.PlayerRef;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import com.sekwah.voicechat.server.VoiceChatRoom;
+import com.sekwah.voicechat.systems.components.VoiceChatComponent;
+import com.sekwah.voicechat.systems.components.VoiceChatConnectedComponent;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.Nonnull;
+
+// Keeps the room's record of which world each player is in, so session changes are queued for
+// the right world thread. The tag components have no codec and are not carried over when a
+// player changes world, so a connected player is tagged again when the entity arrives.
+public class VoiceSessionWorldSystem extends RefSystem<EntityStore> {
+    private final ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType;
+    private final ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType;
+    private final VoiceChatRoom room;
+
+    public VoiceSessionWorldSystem(ComponentType<EntityStore, VoiceChatConnectedComponent> connectedComponentType, ComponentType<EntityStore, VoiceChatComponent> voiceChatComponentType, VoiceChatRoom room) {
+        this.connectedComponentType = connectedComponentType;
+        this.voiceChatComponentType = voiceChatComponentType;
+        this.room = room;
+    }
+
+    @Override
+    public void onEntityAdded(@NotNull Ref<EntityStore> ref, @NotNull AddReason reason, @NotNull Store<EntityStore> store, @NotNull CommandBuffer<EntityStore> commandBuffer) {
+        PlayerRef playerRef = store.getComponent(ref, PlayerRef.getComponentType());
+        if (playerRef == null) {
+            return;
+        }
+        // Recorded before the session is checked, see VoiceChatRoom.queueSessionChange.
+        room.playerEnteredWorld(playerRef.getUuid(), store.getExternalData().getWorld().getName());
+        if (room.isUserConnected(playerRef.getUuid())) {
+            commandBuffer.putComponent(ref, this.connectedComponentType, new VoiceChatConnectedComponent());
+        } else {
+            commandBuffer.tryRemoveComponent(ref, this.connectedComponentType);
+            commandBuffer.tryRemoveComponent(ref, this.voiceChatComponentType);
+        }
+    }
+
+    @Override
+    public void onEntityRemove(@NotNull Ref<EntityStore> ref, @NotNull RemoveReason reason, @NotNull Store<EntityStore> store, @NotNull CommandBuffer<EntityStore> commandBuffer) {
+        PlayerRef playerRef = store.getComponent(ref, PlayerRef.getComponentType());
+        if (playerRef != null) {
+            room.playerLeftWorld(playerRef.getUuid(), store.getExternalData().getWorld().getName());
+        }
+    }
+
+    @Nonnull
+    @Override
+    public Query<EntityStore> getQuery() {
+        return PlayerRef.getComponentType();
+    }
+}
@@ -0,0 +1,124 @@
+package com.sekwah.voicechat.systems;
+
+import com.sekwah.voicechat.VoiceChat;
+import com.sekwah.voicechat.config.VoiceChatConfig;
+import com.sekwah.voicechat.systems.components.VoiceChatComponent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides when each client is allowed to send spatial updates so the voice update rate
+// follows PeerUpdatesPerSecond / AudioEffectUpdatesPerSecond rather than the server tick rate.
+// Peer updates cover position and rotation, audio effect updates cover re-evaluating which
+// peers are within range (and so which peers are audible at all).
+public class VoiceUpdateScheduler {
+
+    private static final double GOLDEN_RATIO_FRACTION = 0.6180339887498949;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final RateStats peerUpdates = new RateStats();
+    private final RateStats audioEffectUpdates = new RateStats();
+    private final AtomicLong lastReportNanos = new AtomicLong(System.nanoTime());
+
+    // Spreads clients over the update interval so they do not all fire on the same tick.
+    public void assignPhase(VoiceChatComponent component, int slot, VoiceChatConfig config) {
+        float phase = (float) ((Math.max(0, slot) * GOLDEN_RATIO_FRACTION) % 1.0);
+        component.timeSinceLastUpdate = phase * interval(config.getPeerUpdatesPerSecond());
+        component.timeSinceLastAudioEffectUpdate = phase * interval(config.getAudioEffectUpdatesPerSecond());
+    }
+
+    public void advance(VoiceChatComponent component, float dt, VoiceChatConfig config) {
+        float peerInterval = interval(config.getPeerUpdatesPerSecond());
+        component.timeSinceLastUpdate += dt;
+        if (component.timeSinceLastUpdate >= peerInterval) {
+            component.timeSinceLastUpdate = consume(component.timeSinceLastUpdate, peerInterval);
+            component.peerUpdateDue = true;
+        }
+
+        float audioEffectInterval = interval(config.getAudioEffectUpdatesPerSecond());
+        component.timeSinceLastAudioEffectUpdate += dt;
+        if (component.timeSinceLastAudioEffectUpdate >= audioEffectInterval) {
+            component.timeSinceLastAudioEffectUpdate = consume(component.timeSinceLastAudioEffectUpdate, audioEffectInterval);
+            component.audioEffectUpdateDue = true;
+        }
+
+        peerUpdates.clientSeconds.add(dt);
+        audioEffectUpdates.clientSeconds.add(dt);
+    }
+
+    // Called by the systems once a due update was actually handled, so slots that were scheduled
+    // but never sent, a client skipped mid world change or a tick that ran long, lower the rate.
+    // A due slot with nothing to send still counts, the client was as up to date as configured.
+    public void recordPeerUpdate() {
+        peerUpdates.updates.increment();
+    }
+
+    public void recordAudioEffectUpdate() {
+        audioEffectUpdates.updates.increment();
+    }
+
+    public double getAchievedPeerUpdatesPerSecond() {
+        return peerUpdates.achievedRate;
+    }
+
+    public double getAchievedAudioEffectUpdatesPerSecond() {
+        return audioEffectUpdates.achievedRate;
+    }
+
+    // Returns true when a report period ended so callers can log their own stats with it.
+    public boolean reportIfDue(VoiceChatConfig config) {
+        long now = System.nanoTime();
+        long last = lastReportNanos.get();
+        if (now - last < REPORT_INTERVAL_NANOS || !lastReportNanos.compareAndSet(last, now)) {
+            return false;
+        }
+        boolean hadClients = peerUpdates.roll();
+        audioEffectUpdates.roll();
+        if (!hadClients) {
+            return true;
+        }
+        int peerRate = config.getPeerUpdatesPerSecond();
+        int audioEffectRate = config.getAudioEffectUpdatesPerSecond();
+        VoiceChat.LOGGER.atFine().log(
+            "Voice update rates per client: peer %.2f/s (configured %s/s), audio effect %.2f/s (configured %s/s)",
+            peerUpdates.achievedRate, peerRate, audioEffectUpdates.achievedRate, audioEffectRate
+        );
+        // Usually means the configured rate is higher than the server tick rate can deliver.
+        if (peerRate > 0 && peerUpdates.achievedRate < peerRate * 0.9) {
+            VoiceChat.LOGGER.atWarning().log(
+                "Voice peer updates are running at %.2f/s, below the configured PeerUpdatesPerSecond of %s.",
+                peerUpdates.achievedRate, peerRate
+            );
+        }
+        return true;
+    }
+
+    private float interval(int updatesPerSecond) {
+        // Zero or negative disables rate limiting and sends on every tick.
+        return updatesPerSecond > 0 ? 1f / updatesPerSecond : 0f;
+    }
+
+    private float consume(float elapsed, float interval) {
+        float remaining = elapsed - interval;
+        // Drop any backlog after a long tick rather than bursting to catch up.
+        return remaining >= interval ? 0f : remaining;
+    }
+
+    private static final class RateStats {
+        private final DoubleAdder clientSeconds = new DoubleAdder();
+        private final LongAdder updates = new LongAdder();
+        private volatile double achievedRate;
+
+        private boolean roll() {
+            double seconds = clientSeconds.sumThenReset();
+            long count = updates.sumThenReset();
+            if (seconds <= 0) {
+                return false;
+            }
+            achievedRate = count / seconds;
+            return true;
+        }
+    }
+}
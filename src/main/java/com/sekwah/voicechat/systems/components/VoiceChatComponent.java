@@ -1,28 +1,82 @@
 package com.sekwah.voicechat.systems.components;
 
 import com.hypixel.hytale.component.Component;
-import com.hypixel.hytale.math.vector.Vector3d;
-import com.hypixel.hytale.math.vector.Vector3f;
 import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
 import org.jetbrains.annotations.Nullable;
 
 public class VoiceChatComponent implements Component<EntityStore> {
 
-    public Vector3d currentPosition;
+    // Last values that got past the dead bands. Kept as primitives so the per tick change
+    // detection does not allocate.
+    public boolean hasPosition;
+    public double positionX;
+    public double positionY;
+    public double positionZ;
     public boolean markPositionDirty;
-    public Vector3f currentRotation;
+    public boolean hasRotation;
+    public float pitch;
+    public float yaw;
+    public float roll;
     public boolean markRotationDirty;
+    // Position changed since the last range check.
+    public boolean markRangeDirty;
 
-    // Will broadcast its locations to other players at a set interval
-    // Though players will be updated about their rotation data more frequently
+    // Smoothed velocity in blocks per second from the raw transform samples.
+    public double velocityX;
+    public double velocityY;
+    public double velocityZ;
+    public boolean hasVelocitySample;
+    public double sampleX;
+    public double sampleY;
+    public double sampleZ;
+
+    // What clients were last told, used to work out where they think this player is now.
+    public boolean hasSentPosition;
+    public double sentX;
+    public double sentY;
+    public double sentZ;
+    public double sentVelocityX;
+    public double sentVelocityY;
+    public double sentVelocityZ;
+    public float timeSinceLastSent;
+
+    // Timers driven by VoiceUpdateScheduler, the due flags are consumed by the broadcast system.
     public float timeSinceLastUpdate;
+    public float timeSinceLastAudioEffectUpdate;
+    public boolean peerUpdateDue;
+    public boolean audioEffectUpdateDue;
 
     public VoiceChatComponent(VoiceChatComponent voiceChatComponent) {
-        this.currentPosition = voiceChatComponent.currentPosition;
-        this.currentRotation = voiceChatComponent.currentRotation;
+        this.hasPosition = voiceChatComponent.hasPosition;
+        this.positionX = voiceChatComponent.positionX;
+        this.positionY = voiceChatComponent.positionY;
+        this.positionZ = voiceChatComponent.positionZ;
+        this.hasRotation = voiceChatComponent.hasRotation;
+        this.pitch = voiceChatComponent.pitch;
+        this.yaw = voiceChatComponent.yaw;
+        this.roll = voiceChatComponent.roll;
         this.markPositionDirty = voiceChatComponent.markPositionDirty;
         this.markRotationDirty = voiceChatComponent.markRotationDirty;
+        this.markRangeDirty = voiceChatComponent.markRangeDirty;
+        this.velocityX = voiceChatComponent.velocityX;
+        this.velocityY = voiceChatComponent.velocityY;
+        this.velocityZ = voiceChatComponent.velocityZ;
+        this.hasVelocitySample = voiceChatComponent.hasVelocitySample;
+        this.sampleX = voiceChatComponent.sampleX;
+        this.sampleY = voiceChatComponent.sampleY;
+        this.sampleZ = voiceChatComponent.sampleZ;
+        this.hasSentPosition = voiceChatComponent.hasSentPosition;
+        this.sentX = voiceChatComponent.sentX;
+        this.sentY = voiceChatComponent.sentY;
+        this.sentZ = voiceChatComponent.sentZ;
+        this.sentVelocityX = voiceChatComponent.sentVelocityX;
+        this.sentVelocityY = voiceChatComponent.sentVelocityY;
+        this.sentVelocityZ = voiceChatComponent.sentVelocityZ;
+        this.timeSinceLastSent = voiceChatComponent.timeSinceLastSent;
         this.timeSinceLastUpdate = voiceChatComponent.timeSinceLastUpdate;
+        this.timeSinceLastAudioEffectUpdate = voiceChatComponent.timeSinceLastAudioEffectUpdate;
+        this.peerUpdateDue = voiceChatComponent.peerUpdateDue;
+        this.audioEffectUpdateDue = voiceChatComponent.audioEffectUpdateDue;
     }
 
     public VoiceChatComponent() {
@@ -0,0 +1,18 @@
+package com.sekwah.voicechat.systems.components;
+
+import com.hypixel.hytale.component.Component;
+import com.hypixel.hytale.server.core.universe.world.storage.EntityStore;
+import org.jetbrains.annotations.Nullable;
+
+// Marks players with an open voice chat session so the voice systems only query those.
+public class VoiceChatConnectedComponent implements Component<EntityStore> {
+
+    public VoiceChatConnectedComponent() {
+
+    }
+
+    @Override
+    public @Nullable Component<EntityStore> clone() {
+        return new VoiceChatConnectedComponent();
+    }
+}
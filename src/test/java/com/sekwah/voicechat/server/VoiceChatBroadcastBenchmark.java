@@ -0,0 +1,122 @@
+package com.sekwah.voicechat.server;
+
+import com.google.gson.JsonObject;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Encoding a broadcast once per recipient against once for everyone, through the same outbound
+// scheduler VoiceChatRoom writes to. Run with ./gradlew benchmark.
+@Tag("benchmark")
+class VoiceChatBroadcastBenchmark {
+
+    private static final int ROUNDS = 3;
+    private static final int BROADCASTS = 2000;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    void encodingOnceAllocatesLessThanPerRecipient() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        System.out.println("recipients  payload  per recipient           encode once");
+        for (int recipients : new int[]{10, 100}) {
+            for (int padding : new int[]{0, 2000}) {
+                JsonObject message = message(padding);
+                EmbeddedChannel[] channels = channels(recipients);
+                Result perRecipient = null;
+                Result once = null;
+                // Only the last round is kept, the earlier ones warm up.
+                for (int round = 0; round < ROUNDS; round++) {
+                    perRecipient = measure(() -> encodePerRecipient(message, channels));
+                    once = measure(() -> encodeOnce(message, channels));
+                }
+                System.out.printf("%-10d  %4d B  %,9d B / %6.1f us  %,9d B / %6.1f us%n", recipients,
+                        message.toString().length(), perRecipient.bytes(), perRecipient.micros(), once.bytes(), once.micros());
+                if (padding > 0) {
+                    assertTrue(once.bytes() < perRecipient.bytes(),
+                            "Encoding once allocated " + once.bytes() + " bytes against " + perRecipient.bytes());
+                }
+                for (EmbeddedChannel channel : channels) {
+                    channel.finishAndReleaseAll();
+                }
+            }
+        }
+    }
+
+    private void encodePerRecipient(JsonObject message, EmbeddedChannel[] channels) {
+        String payload = message.toString();
+        for (EmbeddedChannel channel : channels) {
+            send(channel, new TextWebSocketFrame(payload));
+        }
+    }
+
+    // What VoiceChatRoom.broadcast does.
+    private void encodeOnce(JsonObject message, EmbeddedChannel[] channels) {
+        ByteBuf payload = ByteBufUtil.writeUtf8(ByteBufAllocator.DEFAULT, message.toString());
+        try {
+            for (EmbeddedChannel channel : channels) {
+                send(channel, new TextWebSocketFrame(payload.retainedDuplicate()));
+            }
+        } finally {
+            payload.release();
+        }
+    }
+
+    private void send(EmbeddedChannel channel, TextWebSocketFrame frame) {
+        channel.pipeline().get(VoiceChatOutboundScheduler.class).send(frame, VoiceChatOutboundScheduler.Priority.PRESENCE, true);
+    }
+
+    private Result measure(Runnable broadcast) {
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < BROADCASTS; i++) {
+            broadcast.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result((threads.getCurrentThreadAllocatedBytes() - bytes) / BROADCASTS, elapsed / 1000.0 / BROADCASTS);
+    }
+
+    private JsonObject message(int padding) {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "mute");
+        message.addProperty("id", "0123456789abcdef0123456789abcdef");
+        message.addProperty("muted", true);
+        if (padding > 0) {
+            message.addProperty("sdp", "x".repeat(padding));
+        }
+        return message;
+    }
+
+    // Frames are released once written, standing in for the socket.
+    private EmbeddedChannel[] channels(int count) {
+        EmbeddedChannel[] channels = new EmbeddedChannel[count];
+        for (int i = 0; i < count; i++) {
+            channels[i] = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+                @Override
+                public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                    ReferenceCountUtil.release(msg);
+                    promise.setSuccess();
+                }
+            }, new VoiceChatOutboundScheduler());
+        }
+        return channels;
+    }
+
+    private record Result(long bytes, double micros) {
+    }
+}
@@ -0,0 +1,235 @@
+package com.sekwah.voicechat.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.FixedLengthFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// TLS records and write syscalls on a real TLS connection, for a tick that flushes each frame
+// against one flush per tick, and for replies made while reading with and without the
+// FlushConsolidationHandler. Syscalls are read from /proc so this only runs on Linux.
+// Run with ./gradlew benchmark.
+@Tag("benchmark")
+class VoiceChatFlushBenchmark {
+
+    private static final String WORKER_THREAD = "bench-worker";
+    private static final int TICKS = 200;
+    private static final int FRAMES_PER_TICK = 30;
+    private static final int FRAME_BYTES = 120;
+    private static final int REQUEST_BYTES = 10;
+    private static final int REPLY_BYTES = 64;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicReference<Channel> serverChannel = new AtomicReference<>();
+    private EventLoopGroup worker;
+    private EventLoopGroup other;
+
+    @AfterEach
+    void shutdown() {
+        if (worker != null) {
+            worker.shutdownGracefully();
+        }
+        if (other != null) {
+            other.shutdownGracefully();
+        }
+    }
+
+    @Test
+    void oneFlushPerTickWritesOneRecord() throws Exception {
+        assumeTrue(Files.isDirectory(Path.of("/proc/self/task")));
+        connect(false);
+        Channel server = serverChannel.get();
+
+        Counts perFrame = measure(TICKS, (long) TICKS * FRAMES_PER_TICK * FRAME_BYTES, () -> server.eventLoop().submit(() -> {
+            for (int i = 0; i < FRAMES_PER_TICK; i++) {
+                server.writeAndFlush(Unpooled.wrappedBuffer(new byte[FRAME_BYTES]));
+            }
+        }).syncUninterruptibly());
+        // What VoiceChatRoom.beginBatch and flushBatch do around a tick.
+        Counts batched = measure(TICKS, (long) TICKS * FRAMES_PER_TICK * FRAME_BYTES, () -> server.eventLoop().submit(() -> {
+            for (int i = 0; i < FRAMES_PER_TICK; i++) {
+                server.write(Unpooled.wrappedBuffer(new byte[FRAME_BYTES]));
+            }
+            server.flush();
+        }).syncUninterruptibly());
+
+        print("tick, flush per frame", perFrame);
+        print("tick, one flush", batched);
+        assertTrue(batched.records() < perFrame.records());
+    }
+
+    @Test
+    void consolidationMergesRepliesMadeWhileReading() throws Exception {
+        assumeTrue(Files.isDirectory(Path.of("/proc/self/task")));
+        Counts plain = measureReplies(false);
+        shutdown();
+        Counts consolidated = measureReplies(true);
+
+        print("replies, no consolidation", plain);
+        print("replies, consolidation", consolidated);
+        assertTrue(consolidated.records() < plain.records());
+    }
+
+    // The client sends a burst of requests in one write, the server flushes a reply to each.
+    private Counts measureReplies(boolean consolidate) throws Exception {
+        records.set(0);
+        received.set(0);
+        Channel client = connect(consolidate);
+        return measure(TICKS, (long) TICKS * FRAMES_PER_TICK * REPLY_BYTES,
+                () -> client.writeAndFlush(Unpooled.wrappedBuffer(new byte[REQUEST_BYTES * FRAMES_PER_TICK])).syncUninterruptibly());
+    }
+
+    private Counts measure(int iterations, long expectedBytes, Runnable iteration) throws Exception {
+        long startRecords = records.get();
+        long startWrites = writeSyscalls();
+        long target = received.get() + expectedBytes;
+        for (int i = 0; i < iterations; i++) {
+            iteration.run();
+            Thread.sleep(2);
+        }
+        while (received.get() < target) {
+            Thread.sleep(1);
+        }
+        return new Counts((records.get() - startRecords) / (double) iterations, (writeSyscalls() - startWrites) / (double) iterations);
+    }
+
+    // Same generator VoiceChatTls uses, see there for why the deprecated class is kept.
+    @SuppressWarnings("deprecation")
+    private Channel connect(boolean consolidate) throws Exception {
+        SelfSignedCertificate certificate = new SelfSignedCertificate();
+        SslContext serverContext = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey())
+                .sslProvider(SslProvider.JDK).build();
+        SslContext clientContext = SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE).sslProvider(SslProvider.JDK).build();
+        worker = new MultiThreadIoEventLoopGroup(1, (ThreadFactory) runnable -> new Thread(runnable, WORKER_THREAD), NioIoHandler.newFactory());
+        other = new MultiThreadIoEventLoopGroup(2, NioIoHandler.newFactory());
+        serverChannel.set(null);
+        Channel listener = new ServerBootstrap().group(other, worker).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(serverContext.newHandler(ch.alloc()));
+                        if (consolidate) {
+                            ch.pipeline().addLast(new FlushConsolidationHandler());
+                        }
+                        ch.pipeline().addLast(new FixedLengthFrameDecoder(REQUEST_BYTES));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<ByteBuf>() {
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) {
+                                serverChannel.set(ctx.channel());
+                            }
+
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf request) {
+                                ctx.writeAndFlush(Unpooled.wrappedBuffer(new byte[REPLY_BYTES]));
+                            }
+                        });
+                    }
+                }).bind(0).sync().channel();
+        CountDownLatch handshake = new CountDownLatch(1);
+        Channel client = new Bootstrap().group(other).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        SslHandler ssl = clientContext.newHandler(ch.alloc());
+                        ssl.handshakeFuture().addListener(future -> handshake.countDown());
+                        ch.pipeline().addLast(new RecordCounter(), ssl, new SimpleChannelInboundHandler<ByteBuf>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, ByteBuf message) {
+                                received.addAndGet(message.readableBytes());
+                            }
+                        });
+                    }
+                }).connect(listener.localAddress()).sync().channel();
+        handshake.await();
+        while (serverChannel.get() == null) {
+            Thread.sleep(1);
+        }
+        // Lets the post handshake messages settle before anything is counted.
+        Thread.sleep(200);
+        certificate.delete();
+        return client;
+    }
+
+    // Write syscalls made so far by the server's event loop thread.
+    private long writeSyscalls() throws IOException {
+        try (DirectoryStream<Path> tasks = Files.newDirectoryStream(Path.of("/proc/self/task"))) {
+            for (Path task : tasks) {
+                if (Files.readString(task.resolve("comm")).trim().equals(WORKER_THREAD)) {
+                    for (String line : Files.readAllLines(task.resolve("io"))) {
+                        if (line.startsWith("syscw:")) {
+                            return Long.parseLong(line.substring(6).trim());
+                        }
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("No " + WORKER_THREAD + " thread");
+    }
+
+    private void print(String scenario, Counts counts) {
+        System.out.printf("%-28s %5.1f records  %5.1f write syscalls per iteration%n", scenario, counts.records(), counts.writes());
+    }
+
+    // Counts application data records in the raw stream before the client's SslHandler.
+    private final class RecordCounter extends ChannelInboundHandlerAdapter {
+        private final ByteBuf pending = Unpooled.buffer();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf in = (ByteBuf) msg;
+            pending.writeBytes(in, in.readerIndex(), in.readableBytes());
+            while (pending.readableBytes() >= 5) {
+                int type = pending.getUnsignedByte(pending.readerIndex());
+                int length = pending.getUnsignedShort(pending.readerIndex() + 3);
+                if (pending.readableBytes() < 5 + length) {
+                    break;
+                }
+                if (type == 23) {
+                    records.incrementAndGet();
+                }
+                pending.skipBytes(5 + length);
+            }
+            pending.discardReadBytes();
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private record Counts(double records, double writes) {
+    }
+}
@@ -0,0 +1,72 @@
+package com.sekwah.voicechat.server;
+
+import com.google.gson.JsonParser;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Reading a client message into a Gson tree against pulling out the header with
+// VoiceChatSignalReader, per message type. Run with ./gradlew benchmark.
+@Tag("benchmark")
+class VoiceChatSignalReaderBenchmark {
+
+    private static final int ROUNDS = 3;
+    private static final int READS = 100_000;
+    private static final String PEER = "0123456789abcdef0123456789abcdef";
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final VoiceChatSignalReader reader = new VoiceChatSignalReader();
+
+    @Test
+    void headerReadAllocatesLessThanTree() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        String sdp = "v=0\\r\\n" + "a=candidate:1 1 udp 2122260223 192.168.1.2 54321 typ host generation 0\\r\\n".repeat(30);
+        String[][] messages = {
+                {"offer", "{\"type\":\"offer\",\"to\":\"" + PEER + "\",\"sdp\":{\"type\":\"offer\",\"sdp\":\"" + sdp + "\"}}"},
+                {"ice", "{\"type\":\"ice\",\"to\":\"" + PEER + "\",\"candidate\":{\"candidate\":\"candidate:1 1 udp 2122260223 192.168.1.2 54321 typ host\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}"},
+                {"mute", "{\"type\":\"mute\",\"muted\":true}"},
+                {"hello", "{\"type\":\"hello\",\"token\":\"" + PEER + "\",\"binary\":true}"},
+        };
+        System.out.println("message  size     tree                   header");
+        for (String[] message : messages) {
+            ByteBuf content = Unpooled.copiedBuffer(message[1], StandardCharsets.UTF_8);
+            Result tree = null;
+            Result header = null;
+            // Only the last round is kept, the earlier ones warm up.
+            for (int round = 0; round < ROUNDS; round++) {
+                tree = measure(() -> JsonParser.parseString(content.toString(StandardCharsets.UTF_8)).getAsJsonObject());
+                header = measure(() -> reader.read(content));
+            }
+            System.out.printf("%-7s  %5d B  %,7d B / %5.2f us  %,7d B / %5.2f us%n", message[0], content.readableBytes(),
+                    tree.bytes(), tree.micros(), header.bytes(), header.micros());
+            // Small messages are dominated by the JsonReader both sides create.
+            if (message[0].equals("offer")) {
+                assertTrue(header.bytes() < tree.bytes(),
+                        "Reading the header allocated " + header.bytes() + " bytes against " + tree.bytes());
+            }
+            content.release();
+        }
+    }
+
+    private Result measure(Runnable read) {
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            read.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result((threads.getCurrentThreadAllocatedBytes() - bytes) / READS, elapsed / 1000.0 / READS);
+    }
+
+    private record Result(long bytes, double micros) {
+    }
+}
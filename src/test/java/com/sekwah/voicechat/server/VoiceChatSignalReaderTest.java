@@ -0,0 +1,48 @@
+package com.sekwah.voicechat.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VoiceChatSignalReaderTest {
+
+    private final VoiceChatSignalReader reader = new VoiceChatSignalReader();
+
+    @Test
+    void readsNonAsciiAcrossJsonReaderBuffer() {
+        // Surrogate pairs land on both sides of JsonReader's 1024 char buffer.
+        String candidate = "x".repeat(1001) + "é😀".repeat(100);
+        VoiceChatSignalReader.Header header = reader.read(utf8(
+                "{\"type\":\"ice\",\"to\":\"ff\",\"candidate\":\"" + candidate + "\"}"));
+
+        assertNotNull(header);
+        assertEquals("ice", header.type());
+        assertEquals("ff", header.to());
+        assertTrue(header.forwardable());
+    }
+
+    @Test
+    void rejectsMalformedUtf8() {
+        // Overlong '/', an encoded lone surrogate and a truncated sequence.
+        assertNull(reader.read(withValue((byte) 0xC0, (byte) 0xAF)));
+        assertNull(reader.read(withValue((byte) 0xED, (byte) 0xA0, (byte) 0x80)));
+        assertNull(reader.read(withValue((byte) 0xC3)));
+        // The reader is reused, a bad frame must not affect the next one.
+        assertEquals("mute", reader.read(utf8("{\"type\":\"mute\",\"muted\":true}")).type());
+    }
+
+    private ByteBuf utf8(String json) {
+        return Unpooled.copiedBuffer(json, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuf withValue(byte... value) {
+        return Unpooled.wrappedBuffer(utf8("{\"type\":\"ice\",\"to\":\""), Unpooled.wrappedBuffer(value), utf8("\"}"));
+    }
+}
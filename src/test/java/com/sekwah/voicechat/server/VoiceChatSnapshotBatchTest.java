@@ -0,0 +1,38 @@
+package com.sekwah.voicechat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// A batch the fan out has not flushed yet is handed to the next tick again, these are the
+// range changes of two ticks landing in the same batch.
+class VoiceChatSnapshotBatchTest {
+
+    @Test
+    void exitAfterEnterInAReusedBatchLeavesThePeerOutOfRange() {
+        VoiceChatSnapshotBatch batch = new VoiceChatSnapshotBatch();
+        // First tick.
+        batch.addEnter("a", "b");
+        batch.addEnter("b", "a");
+        // Second tick, before the batch was flushed.
+        batch.addExit("a", "b");
+        batch.addExit("b", "a");
+
+        assertEquals(Set.of(), batch.pending("a").entered());
+        assertEquals(Set.of("b"), batch.pending("a").exited());
+        assertEquals(Set.of(), batch.pending("b").entered());
+        assertEquals(Set.of("a"), batch.pending("b").exited());
+    }
+
+    @Test
+    void enterAfterExitInAReusedBatchLeavesThePeerInRange() {
+        VoiceChatSnapshotBatch batch = new VoiceChatSnapshotBatch();
+        batch.addExit("a", "b");
+        batch.addEnter("a", "b");
+
+        assertEquals(Set.of("b"), batch.pending("a").entered());
+        assertEquals(Set.of(), batch.pending("a").exited());
+    }
+}
@@ -0,0 +1,180 @@
+package com.sekwah.voicechat.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// The per tick work for a player who keeps moving, which should not allocate once warmed up.
+// Positions sent still allocate their PeerUpdate, it is handed over to the fan out thread.
+class VoiceChatSteadyStateAllocationTest {
+
+    private static final int PLAYERS = 64;
+    private static final int TICKS = 2000;
+    // Leaves room for the measurement itself, a single allocation per call would be megabytes.
+    private static final long ALLOWED_BYTES = 1024;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private int drained;
+    private int rangeChanges;
+
+    @Test
+    void movingWithinACellReusesTheIndexEntry() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        VoiceChatSpatialIndex index = new VoiceChatSpatialIndex(64);
+        String[] ids = ids();
+        for (String id : ids) {
+            index.update(id, "world", 8, 8, 8);
+        }
+        VoiceChatSpatialIndex.Entry entry = index.get(ids[0]);
+
+        moveAll(index, ids);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        moveAll(index, ids);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(allocated < ALLOWED_BYTES, "Moving players allocated " + allocated + " bytes");
+        assertSame(entry, index.get(ids[0]));
+    }
+
+    @Test
+    void markingAndDrainingDirtyClientsReusesStorage() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        VoiceChatDirtySet dirty = new VoiceChatDirtySet();
+        String[] ids = ids();
+        Consumer<String> consumer = id -> drained++;
+
+        markAndDrain(dirty, ids, consumer);
+        drained = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        markAndDrain(dirty, ids, consumer);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(allocated < ALLOWED_BYTES, "Dirty tracking allocated " + allocated + " bytes");
+        assertEquals(PLAYERS * TICKS, drained);
+    }
+
+    // The broadcast tick's part: each marked client's range is refreshed with the same listener.
+    @Test
+    void refreshingRangesOfMovingPlayersReusesStorage() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        VoiceChatInterestManager interest = new VoiceChatInterestManager(new VoiceChatSpatialIndex(64));
+        String[] ids = ids();
+        VoiceChatInterestManager.RangeListener listener = new VoiceChatInterestManager.RangeListener() {
+            @Override
+            public void onEnterRange(String id, String peerId) {
+                rangeChanges++;
+            }
+
+            @Override
+            public void onExitRange(String id, String peerId) {
+                rangeChanges++;
+            }
+        };
+
+        moveAndRefresh(interest, ids, listener);
+        assertEquals(PLAYERS * (PLAYERS - 1) / 2, rangeChanges);
+        rangeChanges = 0;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        moveAndRefresh(interest, ids, listener);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(allocated < ALLOWED_BYTES, "Refreshing ranges allocated " + allocated + " bytes");
+        assertEquals(0, rangeChanges);
+        assertEquals(PLAYERS - 1, interest.getVisiblePeers(ids[0]).size());
+    }
+
+    @Test
+    void refreshReportsPeersLeavingRange() {
+        VoiceChatInterestManager interest = new VoiceChatInterestManager(new VoiceChatSpatialIndex(16));
+        List<String> events = new ArrayList<>();
+        VoiceChatInterestManager.RangeListener listener = new VoiceChatInterestManager.RangeListener() {
+            @Override
+            public void onEnterRange(String id, String peerId) {
+                events.add("enter " + id + " " + peerId);
+            }
+
+            @Override
+            public void onExitRange(String id, String peerId) {
+                events.add("exit " + id + " " + peerId);
+            }
+        };
+        interest.updatePosition("a", "world", 0, 0, 0);
+        interest.updatePosition("b", "world", 10, 0, 0);
+        interest.refresh("a", 20, listener);
+        interest.updatePosition("b", "world", 30, 0, 0);
+        interest.refresh("a", 20, listener);
+
+        assertEquals(List.of("enter a b", "exit a b"), events);
+        assertEquals(Set.of(), interest.getVisiblePeers("b"));
+    }
+
+    @Test
+    void movingToAnotherCellIsFoundThere() {
+        VoiceChatSpatialIndex index = new VoiceChatSpatialIndex(16);
+        index.update("a", "world", 1, 1, 1);
+        index.update("a", "world", 100, 1, 1);
+
+        List<String> near = new ArrayList<>();
+        index.collectWithin("world", 1, 1, 1, 8, near);
+        List<String> far = new ArrayList<>();
+        index.collectWithin("world", 100, 1, 1, 8, far);
+
+        assertEquals(List.of(), near);
+        assertEquals(List.of("a"), far);
+    }
+
+    private void moveAll(VoiceChatSpatialIndex index, String[] ids) {
+        for (int tick = 0; tick < TICKS; tick++) {
+            double offset = (tick % 100) * 0.25;
+            for (String id : ids) {
+                index.update(id, "world", 8 + offset, 8, 8 + offset);
+            }
+        }
+    }
+
+    // Everyone stays within the same cell and in range of each other.
+    private void moveAndRefresh(VoiceChatInterestManager interest, String[] ids, VoiceChatInterestManager.RangeListener listener) {
+        for (int tick = 0; tick < TICKS; tick++) {
+            double offset = (tick % 100) * 0.25;
+            for (int i = 0; i < ids.length; i++) {
+                interest.updatePosition(ids[i], "world", 8 + offset, 8, 8 + (i % 8));
+            }
+            for (String id : ids) {
+                interest.refresh(id, 48, listener);
+            }
+        }
+    }
+
+    // Each client is marked twice a tick, the second must not add it again.
+    private void markAndDrain(VoiceChatDirtySet dirty, String[] ids, Consumer<String> consumer) {
+        for (int tick = 0; tick < TICKS; tick++) {
+            for (int i = 0; i < ids.length; i++) {
+                dirty.mark(ids[i], i);
+                dirty.mark(ids[i], i);
+            }
+            dirty.drain(consumer);
+        }
+    }
+
+    private String[] ids() {
+        String[] ids = new String[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            ids[i] = "client" + i;
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,140 @@
+package com.sekwah.voicechat.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Creating a token with 10,000 outstanding, against the store that scanned every token on each
+// create, and the cost of the background sweep. Run with ./gradlew benchmark.
+@Tag("benchmark")
+class VoiceChatTokenStoreBenchmark {
+
+    private static final int ROUNDS = 3;
+    private static final int OUTSTANDING = 10_000;
+    private static final int CREATES = 2_000;
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final UUID[] users = new UUID[500];
+    // Sessions are only written on consume, which is left out here.
+    private final VoiceChatTokenStore store = new VoiceChatTokenStore(null);
+
+    @AfterEach
+    void shutdown() {
+        store.shutdown();
+    }
+
+    @Test
+    void createDoesNotScanOutstandingTokens() {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (int i = 0; i < users.length; i++) {
+            users[i] = UUID.randomUUID();
+        }
+        Result scan = null;
+        Result queued = null;
+        // Only the last round is kept, the earlier ones warm up.
+        for (int round = 0; round < ROUNDS; round++) {
+            ScanningTokenStore previous = new ScanningTokenStore();
+            VoiceChatTokenStore current = round == ROUNDS - 1 ? store : new VoiceChatTokenStore(null);
+            for (int i = 0; i < OUTSTANDING; i++) {
+                previous.createToken(users[i % users.length], TTL.toMillis());
+                current.createToken(users[i % users.length], TTL);
+            }
+            scan = measure(i -> previous.createToken(users[i % users.length], TTL.toMillis()));
+            queued = measure(i -> current.createToken(users[i % users.length], TTL));
+            if (current != store) {
+                current.shutdown();
+            }
+        }
+        System.out.printf("create with %,d outstanding%n", OUTSTANDING);
+        System.out.printf("  removeIf scan          %8.2f us  %,6d B%n", scan.micros(), scan.bytes());
+        System.out.printf("  map plus expiry queue  %8.2f us  %,6d B%n", queued.micros(), queued.bytes());
+        assertTrue(queued.micros() < scan.micros());
+    }
+
+    @Test
+    void sweepOnlyVisitsExpiredTokens() {
+        VoiceChatTokenStore sweeping = store;
+        for (int round = 0; round < ROUNDS; round++) {
+            sweeping = round == ROUNDS - 1 ? store : new VoiceChatTokenStore(null);
+            for (int i = 0; i < OUTSTANDING; i++) {
+                sweeping.createToken(UUID.randomUUID(), Duration.ofMillis(-1));
+                sweeping.createToken(UUID.randomUUID(), TTL);
+            }
+            long start = System.nanoTime();
+            sweeping.purgeExpired();
+            long swept = System.nanoTime();
+            sweeping.purgeExpired();
+            long idle = System.nanoTime();
+            if (round == ROUNDS - 1) {
+                System.out.printf("sweep of %,d expired with %,d live  %6.2f ms, nothing expired %6.2f us%n",
+                        OUTSTANDING, OUTSTANDING, (swept - start) / 1e6, (idle - swept) / 1e3);
+            } else {
+                sweeping.shutdown();
+            }
+        }
+        assertEquals(OUTSTANDING, sweeping.pendingExpiries());
+    }
+
+    private Result measure(java.util.function.IntConsumer create) {
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < CREATES; i++) {
+            create.accept(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result((threads.getCurrentThreadAllocatedBytes() - bytes) / CREATES, elapsed / 1000.0 / CREATES);
+    }
+
+    // The store before expiry was queued, every create dropped expired tokens with a full scan.
+    private static final class ScanningTokenStore {
+        private final Map<String, Entry> tokensByValue = new ConcurrentHashMap<>();
+        private final Map<UUID, Map<String, Long>> tokensByUser = new ConcurrentHashMap<>();
+        private final SecureRandom random = new SecureRandom();
+
+        String createToken(UUID userId, long ttlMillis) {
+            long now = System.currentTimeMillis();
+            tokensByValue.entrySet().removeIf(entry -> {
+                if (entry.getValue().expiresAt() < now) {
+                    removeForUser(entry.getValue().userId(), entry.getKey());
+                    return true;
+                }
+                return false;
+            });
+            String token = new UUID(random.nextLong(), random.nextLong()).toString().replace("-", "");
+            long expiresAt = now + ttlMillis;
+            tokensByValue.put(token, new Entry(userId, expiresAt));
+            tokensByUser.computeIfAbsent(userId, ignored -> new ConcurrentHashMap<>()).put(token, expiresAt);
+            return token;
+        }
+
+        private void removeForUser(UUID userId, String token) {
+            Map<String, Long> tokens = tokensByUser.get(userId);
+            if (tokens != null) {
+                tokens.remove(token);
+                if (tokens.isEmpty()) {
+                    tokensByUser.remove(userId, tokens);
+                }
+            }
+        }
+
+        private record Entry(UUID userId, long expiresAt) {
+        }
+    }
+
+    private record Result(long bytes, double micros) {
+    }
+}